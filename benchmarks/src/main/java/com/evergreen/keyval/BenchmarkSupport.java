@@ -0,0 +1,50 @@
+package com.evergreen.keyval;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Shared setup for the benchmarks. They live in the store's package so they can reach the protected
+ * hot paths, like {@link ClusterMember#calculatePreferenceList}, without widening them.
+ */
+public class BenchmarkSupport {
+
+    // Removes the RocksDB directory a node on the port would open, so every trial starts empty
+    public static void wipe(int port) {
+        Path directory = Path.of(Config.DATA_DIR, String.valueOf(port));
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String[] keys(int count, int size) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            String key = "key" + i;
+            keys[i] = key.length() >= size ? key : key + "_".repeat(size - key.length());
+        }
+        return keys;
+    }
+
+    // Printable, so the same values also work in the JSON batch endpoints
+    public static String value(int size) {
+        StringBuilder value = new StringBuilder(size);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < size; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package com.evergreen.keyval;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@code /db/{key}} throughput and latency against a cluster of nodes started in this JVM,
+ * each with its own RocksDB directory, HTTP port and RPC port. Requests go to a random node, which
+ * coordinates them like any client request, so the numbers include HTTP, quorum and replica RPC
+ * overhead. Replication and quorums come from the usual system properties, passed with
+ * {@code -jvmArgsAppend}.
+ *
+ * Nodes cannot be stopped, and their HTTP servers keep the forked JVM alive, so JMH is told not to
+ * wait for them once the trial is done. A {@code -jvmArgsAppend} on the command line replaces these
+ * arguments, so include {@code -Djmh.shutdownTimeout=0} in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Djmh.shutdownTimeout=0", "-Djmh.shutdownTimeout.step=0"})
+public class ClusterBenchmark {
+
+    private static final int BASE_PORT = 5201;
+    private static final long CONVERGE_TIMEOUT_MS = 30_000;
+    private static final int LOAD_BATCH = 500;
+
+    @Param({"3"})
+    public int nodes;
+
+    @Param({"10000"})
+    public int keyCount;
+
+    @Param({"100", "1000"})
+    public int valueSize;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final Map<String, Node> cluster = new HashMap<>();
+    private String[] addresses;
+    private String[] keys;
+    private String value;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        this.addresses = new String[this.nodes];
+        for (int i = 0; i < this.nodes; i++) {
+            this.addresses[i] = String.format("localhost:%d", BASE_PORT + i);
+        }
+        for (int i = 0; i < this.nodes; i++) {
+            String address = this.addresses[i];
+            String[] seeds = Arrays.stream(this.addresses).filter(seed -> !seed.equals(address)).toArray(String[]::new);
+            BenchmarkSupport.wipe(BASE_PORT + i);
+            this.cluster.put(address, new Node("localhost", BASE_PORT + i, seeds));
+        }
+        this.awaitRing();
+
+        this.keys = BenchmarkSupport.keys(this.keyCount, 16);
+        this.value = BenchmarkSupport.value(this.valueSize);
+        Map<String, String> batch = new HashMap<>();
+        for (String key : this.keys) {
+            batch.put(key, this.value);
+            if (batch.size() == LOAD_BATCH) {
+                this.load(batch);
+            }
+        }
+        if (!batch.isEmpty()) {
+            this.load(batch);
+        }
+    }
+
+    // Nodes learn of each other through gossip, which starts a few seconds after they do
+    private void awaitRing() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT_MS;
+        while (this.cluster.values().stream().anyMatch(node -> node.ring.size() < this.nodes)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(String.format("Nodes did not form a ring of %d within %d ms",
+                        this.nodes, CONVERGE_TIMEOUT_MS));
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private void load(Map<String, String> batch) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(String.format("http://%s/db/_mput", this.addresses[0])))
+                .POST(HttpRequest.BodyPublishers.ofString(this.objectMapper.writeValueAsString(batch)))
+                .build();
+        HttpResponse<String> response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException(String.format("Loading keys answered %d: %s", response.statusCode(), response.body()));
+        }
+        batch.clear();
+    }
+
+    private URI randomKeyUri() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return URI.create(String.format("http://%s/db/%s",
+                this.addresses[random.nextInt(this.addresses.length)], this.keys[random.nextInt(this.keys.length)]));
+    }
+
+    @Benchmark
+    public int get() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder().uri(this.randomKeyUri()).GET().build();
+        return this.httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    @Benchmark
+    public int post() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(this.randomKeyUri())
+                .POST(HttpRequest.BodyPublishers.ofString(this.value))
+                .build();
+        return this.httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
@@ -0,0 +1,102 @@
+package com.evergreen.keyval;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node's local storage: point reads and writes through {@link DBClient#get} and {@link DBClient#post},
+ * and token range reads through {@link DBClient#boundGet} covering about rangeKeys keys each. The store
+ * is loaded with keyCount keys of valueSize bytes before measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBClientBenchmark {
+
+    private static final int PORT = 5102;
+    private static final int LOAD_BATCH = 1000;
+
+    @Param({"100000"})
+    public int keyCount;
+
+    @Param({"100", "1000"})
+    public int valueSize;
+
+    @Param({"100"})
+    public int rangeKeys;
+
+    // Applied as keyval.cacheMaxMb; every parameter combination runs in its own JVM, so it is set
+    // before Config is first read
+    @Param({"0", "64"})
+    public String cacheMaxMb;
+
+    private DBClient db;
+    private String[] keys;
+    private byte[] value;
+    private long rangeWidth;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("keyval.cacheMaxMb", this.cacheMaxMb);
+        BenchmarkSupport.wipe(PORT);
+        this.db = new DBClient(PORT, new Metrics());
+        this.keys = BenchmarkSupport.keys(this.keyCount, 16);
+        this.value = BenchmarkSupport.value(this.valueSize).getBytes(StandardCharsets.UTF_8);
+        List<byte[]> batchKeys = new ArrayList<>();
+        List<byte[]> batchValues = new ArrayList<>();
+        for (String key : this.keys) {
+            batchKeys.add(key.getBytes(StandardCharsets.UTF_8));
+            batchValues.add(Versioned.encode(this.db.nextVersion(), this.value));
+            if (batchKeys.size() == LOAD_BATCH) {
+                this.db.postBatch(batchKeys, batchValues);
+                batchKeys.clear();
+                batchValues.clear();
+            }
+        }
+        if (!batchKeys.isEmpty()) {
+            this.db.postBatch(batchKeys, batchValues);
+        }
+        // Tokens are uniform over the ring, so a range of this width holds about rangeKeys keys
+        this.rangeWidth = Long.divideUnsigned(-1L, Math.max(1, this.keyCount / this.rangeKeys));
+    }
+
+    private String randomKey() {
+        return this.keys[ThreadLocalRandom.current().nextInt(this.keys.length)];
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return this.db.get(this.randomKey());
+    }
+
+    @Benchmark
+    public byte[] post() {
+        return this.db.post(this.randomKey(), this.value);
+    }
+
+    @Benchmark
+    public HashMap<String, String> boundGet() {
+        long lowerBound = ThreadLocalRandom.current().nextLong();
+        return this.db.boundGet(lowerBound, lowerBound + this.rangeWidth);
+    }
+}
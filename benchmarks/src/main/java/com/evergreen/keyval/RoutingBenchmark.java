@@ -0,0 +1,86 @@
+package com.evergreen.keyval;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing a key to its replicas: hashing it to a token with {@link ClusterMember#calculateID} and
+ * looking up its preference list in a ring of ringSize nodes with virtualNodes tokens each. The ring
+ * is installed on a single ClusterMember, so its peers are never contacted. The partitioner is applied
+ * as keyval.partitioner; every parameter combination runs in its own JVM, so it is set before Config
+ * is first read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dkeyval.antiEntropyIntervalMs=0"})
+public class RoutingBenchmark {
+
+    private static final int PORT = 5101;
+    private static final int KEYS = 1 << 16;
+
+    @Param({"3", "16", "64"})
+    public int ringSize;
+
+    @Param({"1", "16"})
+    public int virtualNodes;
+
+    @Param({"16", "128"})
+    public int keySize;
+
+    @Param({"MURMUR3", "MD5"})
+    public String partitioner;
+
+    private ClusterMember member;
+    private String[] keys;
+
+    // Each thread walks the keys from its own position
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        String next(String[] keys) {
+            return keys[this.next++ & (KEYS - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setProperty("keyval.partitioner", this.partitioner);
+        BenchmarkSupport.wipe(PORT);
+        this.member = new ClusterMember("localhost", PORT, new String[0]);
+        List<String> addresses = new ArrayList<>();
+        addresses.add(this.member.address);
+        for (int i = 1; i < this.ringSize; i++) {
+            addresses.add(String.format("10.0.%d.%d:3000", i / 256, i % 256));
+        }
+        this.member.ring = Ring.build(addresses, this.virtualNodes, this.member::calculateID);
+        this.keys = BenchmarkSupport.keys(KEYS, this.keySize);
+    }
+
+    @Benchmark
+    public long calculateID(Cursor cursor) {
+        return this.member.calculateID(cursor.next(this.keys));
+    }
+
+    @Benchmark
+    public String[] calculatePreferenceList(Cursor cursor) {
+        return this.member.calculatePreferenceList(cursor.next(this.keys));
+    }
+}
@@ -3,214 +3,750 @@ package com.evergreen.keyval;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 public class ClusterMember {
 
+    private static final int HANDOFF_BATCH_KEYS = 1000;
+    private static final int HANDOFF_BATCH_BYTES = 4 << 20;
+    private static final int HANDOFF_RETRIES = 3;
+    private static final int HINT_REPLAY_BATCH = 100;
+    // Anti-entropy waits for ranges to settle so that replicas agree on the ranges they compare, and so
+    // that it does not copy a handed-off range back before this node learns of the join
+    private static final long RANGE_SETTLE_MS = 10_000;
+    private static final long GOSSIP_INTERVAL_MS = 1000;
+    // Sent with gossip and membership requests and responses; a peer that sends none predates
+    // configurable partitioners and hashes with MD5
+    public static final String PARTITIONER_HEADER = "X-Keyval-Partitioner";
+
     protected int replicas;
-    protected MessageDigest md;
-    protected PriorityQueue<Long> nodes;
-    protected Long[] nodesArray;
-    protected HashMap<Long, String> nodeIdToAddress;
+    // The partitioner this node's data was written with; see Partitioner
+    protected final Partitioner partitioner;
+    protected volatile Ring ring;
+    protected Membership membership;
+    // Heartbeats spread by gossip, so they arrive somewhat less often than one gossip round
+    protected final FailureDetector failureDetector = new FailureDetector(2 * GOSSIP_INTERVAL_MS);
+    // Per-peer replica call latency, used to pick and hedge read replicas
+    protected final ReplicaLatency replicaLatency = new ReplicaLatency();
+    // When each currently suspected peer was first suspected
+    protected final ConcurrentHashMap<String, Long> suspectedSince = new ConcurrentHashMap<>();
+    // Guards membership; a lock rather than synchronized so virtual threads do not pin their carriers
+    protected final ReentrantLock membershipLock = new ReentrantLock();
+    // Served by GET /metrics
+    protected final Metrics metrics = new Metrics();
     protected final DBClient db;
     protected final long id;
     protected final String address;
     protected final ObjectMapper objectMapper = new ObjectMapper();
-    protected long nodesUpdatedTime;
-    protected final HttpClient httpClient = HttpClient.newHttpClient();
+    // Last time the ring changed or a range was handed off from this node
+    protected volatile long rangesMovedTime;
+    protected final HttpClient httpClient = HttpClient.newBuilder()
+            .executor(Threads.executor("http-client-"))
+            .build();
+    protected final WireCompression compression = new WireCompression(this.metrics);
+    // Whether each peer last advertised the same compression as this node, from its HTTP responses
+    private final ConcurrentHashMap<String, Boolean> compressingPeers = new ConcurrentHashMap<>();
+    protected final RpcClient rpcClient = new RpcClient(Config.RPC_CONNECTIONS_PER_PEER, Config.RPC_TIMEOUT_MS, this.compression);
+    // Position of the next range an anti-entropy round compares
+    private int antiEntropyCursor;
 
     public ClusterMember(String hostname, int port, String[] nodes) {
-
-        try {
-            this.md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("No algorithm MD5");
-        }
-        this.db = new DBClient(port);
+        this.db = new DBClient(port, this.metrics);
+        this.partitioner = this.db.partitioner();
         this.address = String.format("%s:%d", hostname, port);
         this.id = this.calculateID(this.address);
-        this.nodeIdToAddress = new HashMap<>();
-        ArrayList<Long> nodeIds = new ArrayList<>(Arrays.stream(nodes).map(this::calculateID).toList());
-        nodeIds.add(this.id);
-        for (int i = 0; i < nodes.length; i++) {
-            this.nodeIdToAddress.put(nodeIds.get(i), nodes[i]);
+        HashMap<Long, String> seeds = new HashMap<>();
+        for (String node : nodes) {
+            seeds.put(this.calculateID(node), node);
         }
-        nodeIdToAddress.put(this.id, String.format("%s:%d", hostname, port));
-        this.nodes = new PriorityQueue<>(nodeIds);
-        this.nodesUpdatedTime = Instant.now().toEpochMilli();
+        this.membership = new Membership(this.id, this.address, seeds);
+        this.rebuildRing();
 
-        this.replicas = Math.min(2, nodeIds.size());
+        this.replicas = Config.REPLICATION_FACTOR;
+        this.registerMetrics();
 
-        TimerTask pollNodes = new TimerTask() {
+        Runnable pollNodes = new Runnable() {
             @Override
             public void run() {
                 ClusterMember outerThis = ClusterMember.this;
-                int targetNodeIdx = (int) (Math.random() * outerThis.nodes.size());
-                long targetNode = outerThis.nodes.toArray(new Long[0])[targetNodeIdx];
-                String urlString = String.format("http://%s/nodes", outerThis.nodeIdToAddress.get(targetNode));
+                long start = System.nanoTime();
+                outerThis.checkFailures();
+                String targetAddress = outerThis.gossipTarget();
+                if (targetAddress == null) {
+                    return;
+                }
+                String urlString = String.format("http://%s/nodes/digest", targetAddress);
                 try {
-                    // Exchange node information between two nodes. POST to the partner node and then GET from it
-                    String jsonString = objectMapper.writeValueAsString(outerThis.nodeIdToAddress);
-                    HttpRequest postNodesRequest = HttpRequest.newBuilder()
-                            .uri(new URI(urlString))
-                            .header("Last-Modified", String.valueOf(outerThis.nodesUpdatedTime))
-                            .POST(HttpRequest.BodyPublishers.ofString(jsonString))
-                            .build();
-                    outerThis.httpClient.send(postNodesRequest, HttpResponse.BodyHandlers.ofString());
-
-                    HttpRequest getNodesRequest = HttpRequest.newBuilder()
-                            .uri(new URI(urlString))
-                            .GET()
-                            .build();
-                    HttpResponse<String> response = outerThis.httpClient
-                            .send(getNodesRequest, HttpResponse.BodyHandlers.ofString());
-                    String responseJson = response.body();
-                    Optional<String> lastModifiedHeader = response.headers().firstValue("Last-Modified");
-
-                    // Keep the node information that was updated more recently
-                    if (lastModifiedHeader.isPresent()) {
-                        long lastModified = Long.parseLong(lastModifiedHeader.get());
-                        outerThis.updateMembership(responseJson, lastModified);
+                    // Send the partner a digest of our versions; it answers with the entries it has newer
+                    // and the ids it wants from us, which are the only entries that cross the wire
+                    byte[] digestJson;
+                    outerThis.membershipLock.lock();
+                    try {
+                        outerThis.membership.beat();
+                        digestJson = objectMapper.writeValueAsBytes(outerThis.membership.digest());
+                    } finally {
+                        outerThis.membershipLock.unlock();
+                    }
+                    HttpRequest digestRequest = outerThis.gossipRequest(targetAddress, new URI(urlString), digestJson);
+                    HttpResponse<byte[]> response = outerThis.peerSend(targetAddress, "/nodes/digest",
+                            digestRequest, HttpResponse.BodyHandlers.ofByteArray());
+                    if (!outerThis.samePartitioner(response)) {
+                        outerThis.refusePeer(targetAddress, response);
+                        return;
+                    }
+                    if (response.statusCode() != 200) {
+                        throw new IOException(String.format("%s answered %d", targetAddress, response.statusCode()));
                     }
-                    outerThis.replicas = Math.min(2, outerThis.nodes.size());
+                    Membership.Delta delta = objectMapper.readValue(outerThis.responseBody(response), Membership.Delta.class);
+                    outerThis.mergeMembers(delta.updates());
 
+                    if (!delta.wanted().isEmpty()) {
+                        byte[] updatesJson;
+                        outerThis.membershipLock.lock();
+                        try {
+                            updatesJson = objectMapper.writeValueAsBytes(outerThis.membership.entries(delta.wanted()));
+                        } finally {
+                            outerThis.membershipLock.unlock();
+                        }
+                        HttpRequest postNodesRequest = outerThis.gossipRequest(targetAddress,
+                                new URI(String.format("http://%s/nodes", targetAddress)), updatesJson);
+                        outerThis.peerSend(targetAddress, "/nodes", postNodesRequest, HttpResponse.BodyHandlers.ofString());
+                    }
                 } catch (InterruptedException | IOException e) {
-                    System.err.printf("Node at %s was removed from the ring\n", outerThis.nodeIdToAddress.get(targetNode));
-                    outerThis.deleteNode(targetNode);
+                    // A failed round is not a verdict; the failure detector decides once heartbeats stop
                 } catch (URISyntaxException e) {
                     System.err.printf("Unable to create URI %s\n", urlString);
                 }
+                outerThis.metrics.timer("keyval_gossip_round_seconds", "Duration of gossip rounds").recordSince(start);
             }
         };
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(pollNodes, 3000,1000);
+        Threads.scheduler("gossip-").scheduleAtFixedRate(pollNodes, 3000, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        // Separate scheduler so a long replay never delays gossip
+        Threads.scheduler("hint-replay-").scheduleWithFixedDelay(this::replayHints, 5000, 1000, TimeUnit.MILLISECONDS);
+
+        if (Config.ANTI_ENTROPY_INTERVAL_MS > 0) {
+            Threads.scheduler("anti-entropy-").scheduleWithFixedDelay(this::antiEntropy,
+                    Config.ANTI_ENTROPY_INTERVAL_MS, Config.ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Gauges over state kept elsewhere, read when /metrics is scraped
+    private void registerMetrics() {
+        HintLog hints = this.db.hints();
+        this.metrics.gauge("keyval_hints_pending", "Hints waiting to be replayed",
+                () -> ((Number) hints.stats().get("pending")).doubleValue());
+        for (String stat : List.of("written", "replayed", "dropped")) {
+            this.metrics.counter("keyval_hints_" + stat + "_total", "Hints " + stat,
+                    () -> ((Number) hints.stats().get(stat)).doubleValue());
+        }
+        this.metrics.gauge("keyval_ring_nodes", "Nodes in this node's ring", () -> this.ring.size());
+        this.metrics.gauge("keyval_peers_suspected", "Peers whose phi is over keyval.phiThreshold", () -> this.suspectedSince.size());
+    }
+
+    // Sends an operation to a peer's RPC transport, timing it per peer and operation. Callers that pick
+    // replicas go through Node's replicaCall, which also tracks the latency used to rank them.
+    protected CompletableFuture<Rpc.Frame> peerCall(String peer, byte op, byte[] payload) {
+        long start = System.nanoTime();
+        String opName = Rpc.name(op);
+        return this.rpcClient.call(this.rpcAddress(peer), op, payload, this.compressesFor(peer)).whenComplete((response, e) -> {
+            this.metrics.timer("keyval_peer_call_seconds", "Duration of RPCs to peers", "peer", peer, "op", opName)
+                    .recordSince(start);
+            if (e != null || response.code() == Rpc.ERROR) {
+                this.metrics.counter("keyval_peer_call_errors_total", "RPCs to peers that failed or answered with an error",
+                        "peer", peer, "op", opName).inc();
+            }
+        });
+    }
+
+    // Sends an HTTP request to a peer, timing it per peer and endpoint until the response headers arrive
+    protected <T> HttpResponse<T> peerSend(String peer, String endpoint, HttpRequest request,
+                                           HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            HttpResponse<T> response = this.httpClient.send(request, bodyHandler);
+            failed = response.statusCode() >= 500;
+            this.compressingPeers.put(peer, this.compression.accepts(response.headers().firstValue(WireCompression.HEADER).orElse(null)));
+            return response;
+        } finally {
+            this.metrics.timer("keyval_peer_http_seconds", "Duration of HTTP requests to peers",
+                    "peer", peer, "endpoint", endpoint).recordSince(start);
+            if (failed) {
+                this.metrics.counter("keyval_peer_http_errors_total", "HTTP requests to peers that failed or answered 5xx",
+                        "peer", peer, "endpoint", endpoint).inc();
+            }
+        }
+    }
+
+    protected boolean compressesFor(String peer) {
+        return this.compressingPeers.getOrDefault(peer, false);
+    }
+
+    // Asks for the response compressed, if this node compresses at all
+    protected HttpRequest.Builder acceptCompressed(HttpRequest.Builder builder) {
+        if (this.compression.advertisement() != null) {
+            builder.header("Accept-Encoding", WireCompression.ENCODING);
+        }
+        return builder;
+    }
+
+    // A gossip POST, with its body compressed if the peer advertised the same compression. A peer that
+    // stops answering must not stall the round, or every other peer's heartbeats would stall with it.
+    protected HttpRequest gossipRequest(String peer, URI uri, byte[] body) {
+        HttpRequest.Builder builder = this.acceptCompressed(HttpRequest.newBuilder())
+                .uri(uri)
+                .timeout(Duration.ofMillis(GOSSIP_INTERVAL_MS))
+                .header(PARTITIONER_HEADER, this.partitioner.name());
+        byte[] compressed = this.compressesFor(peer) ? this.compression.compress(body, "gossip") : null;
+        if (compressed != null) {
+            builder.header("Content-Encoding", WireCompression.ENCODING);
+            body = compressed;
+        }
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+
+    protected byte[] responseBody(HttpResponse<byte[]> response) throws IOException {
+        return compressed(response) ? this.compression.decompress(response.body()) : response.body();
+    }
+
+    protected InputStream responseStream(HttpResponse<InputStream> response) throws IOException {
+        return compressed(response) ? this.compression.decompressStream(response.body()) : response.body();
+    }
+
+    private static boolean compressed(HttpResponse<?> response) {
+        return WireCompression.ENCODING.equals(response.headers().firstValue("Content-Encoding").orElse(null));
     }
 
     protected long calculateID(String key) {
-        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-        byte[] digest = this.md.digest(keyBytes);
-        return ByteBuffer.wrap(digest).getLong();
-    }
-
-    protected int calculateNodeIdx(String address) {
-        Long[] nodes = this.nodes.toArray(new Long[0]);
-        long hash = this.calculateID(address);
-        return this.calculateNodeIdx(hash);
-    }
-
-    protected int calculateNodeIdx(long nodeId) {
-        Long[] nodes = this.nodes.toArray(new Long[0]);
-        int start = 0;
-        int end = nodes.length;
-        while (start < end) {
-            int mid = start + (end - start) / 2;
-            if (nodes[mid] > nodeId) {
-                end = mid;
-            } else if (nodes[mid] < nodeId) {
-                start = mid + 1;
+        return this.partitioner.token(key);
+    }
+
+    // The partitioner a peer sent with a request or response
+    protected static String peerPartitioner(String header) {
+        return header == null ? Config.PartitionerType.MD5.name() : header;
+    }
+
+    protected boolean samePartitioner(HttpResponse<?> response) {
+        return this.partitioner.name().equals(peerPartitioner(response.headers().firstValue(PARTITIONER_HEADER).orElse(null)));
+    }
+
+    // Takes a peer that hashes with a different partitioner out of the ring; it places keys and nodes
+    // on different tokens, so it cannot share a ring with this node
+    protected void refusePeer(String peer, HttpResponse<?> response) {
+        if (this.removeMember(this.calculateID(peer))) {
+            System.err.printf("Node at %s uses the %s partitioner, not %s, and was removed from the ring\n", peer,
+                    peerPartitioner(response.headers().firstValue(PARTITIONER_HEADER).orElse(null)), this.partitioner.name());
+        }
+    }
+
+    // Hands stored hints back to their replicas in batches once the replicas are in the ring again and
+    // no longer suspected, dropping hints that have outlived keyval.hintTtlMinutes
+    protected void replayHints() {
+        HintLog hints = this.db.hints();
+        for (String target : hints.targets()) {
+            boolean healthy = this.ring.indexOf(target) >= 0 && !this.suspected(target);
+            while (true) {
+                List<HintLog.Hint> batch = new ArrayList<>(hints.read(target, HINT_REPLAY_BATCH));
+                if (batch.isEmpty()) {
+                    break;
+                }
+                long expiry = System.currentTimeMillis() - Config.HINT_TTL_MS;
+                List<HintLog.Hint> expired = batch.stream().filter(hint -> hint.createdMillis() < expiry).toList();
+                if (!expired.isEmpty()) {
+                    hints.expired(expired);
+                    batch.removeAll(expired);
+                }
+                if (!healthy || (!batch.isEmpty() && !this.deliverHints(target, batch))) {
+                    break;
+                }
+                if (!batch.isEmpty() && hints.delivered(batch) == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean deliverHints(String target, List<HintLog.Hint> hints) {
+        List<byte[]> pairs = new ArrayList<>();
+        for (HintLog.Hint hint : hints) {
+            pairs.add(hint.key());
+            if (hint.op() == Rpc.DELETE) {
+                // Deletes are hinted as tombstones now; a DELETE hint stored before that carries no
+                // version, so it is sent as a tombstone versioned as early as the delete could have been
+                pairs.add(Versioned.tombstone(HybridClock.at(hint.createdMillis()), hint.createdMillis()));
             } else {
-                return mid;
+                pairs.add(hint.value());
             }
         }
-        return start;
+        try {
+            return this.peerCall(target, Rpc.MULTI_PUT, Rpc.encodeList(pairs)).get().code() == Rpc.OK;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
     }
 
-    protected List<Long> calculatePreferenceList(String key) {
-        Long[] nodes = this.nodes.toArray(new Long[0]);
-        long nodeIdx = this.calculateNodeIdx(key);
+    // Address of the internal RPC transport of the node whose HTTP API is at the given address
+    protected String rpcAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        int port = Integer.parseInt(address.substring(separator + 1));
+        return String.format("%s:%d", address.substring(0, separator), port + Config.RPC_PORT_OFFSET);
+    }
 
-        ArrayList<Long> preferenceList = new ArrayList<>();
-        int nodesAdded = 0;
-        while (nodesAdded < this.replicas) {
-            preferenceList.add(nodes[((int) nodeIdx + nodesAdded) % nodes.length]);
-            nodesAdded++;
-        }
-        return preferenceList;
+    // Rebuilds the ring snapshot from the live members; callers hold the membership lock
+    protected void rebuildRing() {
+        this.ring = Ring.build(this.membership.addresses(false), Config.VIRTUAL_NODES, this::calculateID);
+        this.rangesMovedTime = Instant.now().toEpochMilli();
     }
 
-    protected void rebalanceOnAdd() {
-        Long[] nodes = this.nodes.toArray(new Long[0]);
-        int nodeIdx = this.calculateNodeIdx(this.id);
+    protected String[] calculatePreferenceList(String key) {
+        return this.ring.preferenceList(this.calculateID(key), this.replicas);
+    }
 
-        int prevNodeIdx = nodeIdx - 1;
-        if (prevNodeIdx < 0) {
-            prevNodeIdx = nodes.length - 1;
+    protected static boolean contains(String[] addresses, String address) {
+        for (String a : addresses) {
+            if (a.equals(address)) {
+                return true;
+            }
         }
-        long prevNodeId = nodes[prevNodeIdx];
-        String prevNodeAddress = this.nodeIdToAddress.get(prevNodeId);
+        return false;
+    }
 
-        int lowerNodeIdx = nodeIdx - this.replicas;
-        if (lowerNodeIdx < 0) {
-            lowerNodeIdx = nodes.length - this.replicas + nodeIdx;
+    // Pulls the ring range (lowerBound, upperBound] from the source node as a stream of binary frames
+    // and applies it in bounded WriteBatches. Frames are only read as fast as they are written, so TCP
+    // flow control keeps the sender from racing ahead, and a broken transfer resumes after the last
+    // key that was applied.
+    protected boolean streamRange(String sourceAddress, long lowerBound, long upperBound) {
+        String after = null;
+        int attempts = 0;
+        Metrics.Counter transferredKeys = this.metrics.counter("keyval_rebalance_keys_total",
+                "Keys copied into ranges this node took over", "mode", "stream");
+        Metrics.Counter transferredBytes = this.metrics.counter("keyval_rebalance_bytes_total",
+                "Bytes copied into ranges this node took over", "mode", "stream");
+        while (true) {
+            String urlString = String.format("http://%s/keys/stream?lower=%d&upper=%d", sourceAddress, lowerBound, upperBound);
+            if (after != null) {
+                urlString += "&after=" + URLEncoder.encode(after, StandardCharsets.UTF_8);
+            }
+            try {
+                HttpRequest streamRequest = this.acceptCompressed(HttpRequest.newBuilder())
+                        .uri(new URI(urlString))
+                        .GET()
+                        .build();
+                HttpResponse<InputStream> response = this.peerSend(sourceAddress, "/keys/stream",
+                        streamRequest, HttpResponse.BodyHandlers.ofInputStream());
+                if (response.statusCode() != 200) {
+                    response.body().close();
+                    throw new IOException(String.format("%s answered %d", sourceAddress, response.statusCode()));
+                }
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(this.responseStream(response)))) {
+                    List<byte[]> keys = new ArrayList<>();
+                    List<byte[]> values = new ArrayList<>();
+                    long batchBytes = 0;
+                    byte[][] entry;
+                    while ((entry = HandoffStream.readEntry(in)) != null) {
+                        keys.add(entry[0]);
+                        values.add(entry[1]);
+                        batchBytes += entry[0].length + entry[1].length;
+                        transferredKeys.inc();
+                        transferredBytes.add(entry[0].length + entry[1].length);
+                        if (keys.size() >= HANDOFF_BATCH_KEYS || batchBytes >= HANDOFF_BATCH_BYTES) {
+                            after = this.applyHandoffBatch(keys, values);
+                            batchBytes = 0;
+                        }
+                    }
+                    if (!keys.isEmpty()) {
+                        this.applyHandoffBatch(keys, values);
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                if (++attempts > HANDOFF_RETRIES) {
+                    System.err.printf("Unable to transfer range (%d, %d] from %s\n", lowerBound, upperBound, sourceAddress);
+                    e.printStackTrace();
+                    return false;
+                }
+                System.err.printf("Transfer from %s interrupted, resuming after %s\n", sourceAddress, after);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (URISyntaxException e) {
+                System.err.printf("Unable to create URI %s\n", urlString);
+                return false;
+            }
         }
-        long lowerBound = nodes[lowerNodeIdx];
+    }
 
+    // Copies the ring range (lowerBound, upperBound] from the source node as an SST file, which the
+    // source builds from a snapshot of the range, and ingests it whole. Returns false if the source
+    // could not build it or it could not be ingested, so the range can be streamed instead.
+    protected boolean snapshotRange(String sourceAddress, long lowerBound, long upperBound) {
+        Path file = null;
         try {
-            HttpRequest getKeysRequest = HttpRequest.newBuilder()
-                    .uri(new URI(String.format("http://%s/keys?lower=%d&upper=%d", prevNodeAddress, lowerBound, this.id)))
+            file = Files.createTempFile(this.db.directory(), "snapshot-", ".sst");
+            HttpRequest snapshotRequest = HttpRequest.newBuilder()
+                    .uri(new URI(String.format("http://%s/keys/snapshot?lower=%d&upper=%d", sourceAddress, lowerBound, upperBound)))
                     .GET()
                     .build();
-            HttpResponse<String> response = this.httpClient.send(getKeysRequest, HttpResponse.BodyHandlers.ofString());
-            HashMap<String, String> data = this.objectMapper.readValue(response.body(), new TypeReference<>() {});
-            for (String key : data.keySet()) {
-                this.db.post(key, data.get(key));
-            }
-
-            for (int i = 0; i < this.replicas; i++) {
-                long deleteUpperBound = nodes[(lowerNodeIdx + i + 1) % nodes.length];
-                String nodeAddress = this.nodeIdToAddress.get(nodes[(nodeIdx + i + 1) % nodes.length]);
-                HttpRequest deleteKeysRequest = HttpRequest.newBuilder()
-                        .uri(new URI(String.format("http://%s/keys?upper=%d", nodeAddress, deleteUpperBound)))
-                        .DELETE()
-                        .build();
-                this.httpClient.send(deleteKeysRequest, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<Path> response = this.peerSend(sourceAddress, "/keys/snapshot",
+                    snapshotRequest, HttpResponse.BodyHandlers.ofFile(file));
+            if (response.statusCode() == 204) {
+                // The range is empty
+                return true;
+            }
+            if (response.statusCode() != 200) {
+                System.err.printf("%s answered %d to a snapshot of (%d, %d]\n", sourceAddress, response.statusCode(), lowerBound, upperBound);
+                return false;
             }
-        } catch (IOException | InterruptedException | URISyntaxException e) {
+            this.metrics.counter("keyval_rebalance_bytes_total", "Bytes copied into ranges this node took over",
+                    "mode", "snapshot").add(Files.size(file));
+            return this.db.ingestRange(file, lowerBound, upperBound);
+        } catch (IOException | URISyntaxException e) {
+            System.err.printf("Unable to copy a snapshot of (%d, %d] from %s\n", lowerBound, upperBound, sourceAddress);
             e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
-    protected synchronized void updateMembership(String membershipJson, long lastModified) {
-        if (lastModified > this.nodesUpdatedTime || lastModified == 0) {
+    // Writes the batch and returns its last key, which is where a retried transfer resumes
+    private String applyHandoffBatch(List<byte[]> keys, List<byte[]> values) throws IOException {
+        if (!this.db.postBatch(keys, values)) {
+            throw new IOException("Unable to apply transferred batch");
+        }
+        String lastKey = new String(keys.get(keys.size() - 1), StandardCharsets.UTF_8);
+        keys.clear();
+        values.clear();
+        return lastKey;
+    }
+
+    // For every token range this node now replicates, copies the keys from a node that held the range
+    // before the join and deletes them from the nodes that no longer replicate it. Ranges are copied
+    // as snapshots unless keyval.bootstrap=stream, and streamed if the snapshot fails.
+    protected void rebalanceOnAdd() {
+        Ring ring = this.ring;
+        Ring previousRing = ring.without(this.address);
+        if (previousRing.size() == 0) {
+            return;
+        }
+
+        for (int i = 0; i < ring.tokenCount(); i++) {
+            long upperBound = ring.token(i);
+            long lowerBound = ring.token(i == 0 ? ring.tokenCount() - 1 : i - 1);
+            String[] preferenceList = ring.preferenceList(upperBound, this.replicas);
+            if (!contains(preferenceList, this.address)) {
+                continue;
+            }
+            String[] previousPreferenceList = previousRing.preferenceList(upperBound, this.replicas);
+
+            boolean copied = false;
+            if (Config.BOOTSTRAP == Config.Bootstrap.SNAPSHOT) {
+                copied = this.timeTransfer("snapshot",
+                        () -> this.snapshotRange(previousPreferenceList[0], lowerBound, upperBound));
+                if (!copied) {
+                    System.err.printf("Streaming (%d, %d] from %s instead\n", lowerBound, upperBound, previousPreferenceList[0]);
+                }
+            }
+            if (!copied && !this.timeTransfer("stream",
+                    () -> this.streamRange(previousPreferenceList[0], lowerBound, upperBound))) {
+                // Leave the previous replicas untouched so the range is not lost
+                continue;
+            }
             try {
-                HashMap<Long, String> newNodes = objectMapper.readValue(membershipJson,
-                        new TypeReference<>() {});
-                if (!newNodes.equals(this.nodeIdToAddress)) {
-                    Set<Long> combinedKeys = Stream.concat(newNodes.keySet().stream(),
-                                    this.nodeIdToAddress.keySet().stream())
-                            .collect(Collectors.toSet());
-                    this.nodes = new PriorityQueue<>(combinedKeys);
-                    for (Long key : newNodes.keySet()) {
-                        if (newNodes.get(key).isEmpty()) {
-                            this.nodes.remove(key);
-                        }
-                        this.nodeIdToAddress.put(key, newNodes.get(key));
+                for (String nodeAddress : previousPreferenceList) {
+                    if (contains(preferenceList, nodeAddress)) {
+                        continue;
                     }
-                    this.nodesUpdatedTime = Instant.now().toEpochMilli();
+                    HttpRequest deleteKeysRequest = HttpRequest.newBuilder()
+                            .uri(new URI(String.format("http://%s/keys?lower=%d&upper=%d",
+                                    nodeAddress, lowerBound, upperBound)))
+                            .DELETE()
+                            .build();
+                    this.peerSend(nodeAddress, "/keys", deleteKeysRequest, HttpResponse.BodyHandlers.ofString());
                 }
-            } catch (Exception e) {
+            } catch (IOException | InterruptedException | URISyntaxException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    protected synchronized void deleteNode(long nodeId) {
-        this.nodeIdToAddress.remove(nodeId);
-        this.nodes.remove(nodeId);
-        this.nodesUpdatedTime = Instant.now().toEpochMilli();
+    // Times one range transfer, counting it as failed if it returns false
+    private boolean timeTransfer(String mode, BooleanSupplier transfer) {
+        long start = System.nanoTime();
+        boolean copied = transfer.getAsBoolean();
+        this.metrics.timer("keyval_rebalance_range_seconds", "Duration of copying a range this node took over",
+                "mode", mode).recordSince(start);
+        if (!copied) {
+            this.metrics.counter("keyval_rebalance_failures_total", "Range copies that failed", "mode", mode).inc();
+        }
+        return copied;
+    }
+
+    // Compares the next token range this node replicates, but is not the primary for, with the range's
+    // primary replica. Replicas exchange hash tree nodes level by level, descending only into subtrees
+    // whose hashes differ, and then reconcile just the differing leaves.
+    protected void antiEntropy() {
+        if (Instant.now().toEpochMilli() - this.rangesMovedTime < RANGE_SETTLE_MS) {
+            return;
+        }
+        Ring ring = this.ring;
+        for (int step = 0; step < ring.tokenCount(); step++) {
+            int i = Math.floorMod(this.antiEntropyCursor++, ring.tokenCount());
+            long upperBound = ring.token(i);
+            long lowerBound = ring.token(i == 0 ? ring.tokenCount() - 1 : i - 1);
+            String[] preferenceList = ring.preferenceList(upperBound, this.replicas);
+            if (preferenceList[0].equals(this.address) || !contains(preferenceList, this.address)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                List<Integer> leaves = this.differingLeaves(preferenceList[0], this.db.merkleTree(lowerBound, upperBound));
+                int repaired = 0;
+                for (int leaf : leaves) {
+                    repaired += this.repairLeaf(preferenceList[0], lowerBound, upperBound, leaf);
+                }
+                this.metrics.counter("keyval_anti_entropy_leaves_total", "Merkle tree leaves found to differ").add(leaves.size());
+                this.metrics.counter("keyval_anti_entropy_repaired_keys_total", "Keys repaired by anti-entropy").add(repaired);
+                if (repaired > 0) {
+                    System.err.printf("Repaired %d keys in %d of %d leaves of range (%d, %d] against %s\n",
+                            repaired, leaves.size(), MerkleTree.leafCount(lowerBound, upperBound),
+                            lowerBound, upperBound, preferenceList[0]);
+                }
+            } catch (IOException | ExecutionException | URISyntaxException e) {
+                System.err.printf("Anti-entropy of range (%d, %d] with %s failed: %s\n",
+                        lowerBound, upperBound, preferenceList[0], e.getMessage());
+                this.metrics.counter("keyval_anti_entropy_failures_total", "Anti-entropy rounds that failed").inc();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.metrics.timer("keyval_anti_entropy_round_seconds", "Duration of anti-entropy rounds").recordSince(start);
+            return;
+        }
+    }
+
+    // Whether this node's ring has (lowerBound, upperBound] as a single range with this node as its primary
+    protected boolean primaryFor(long lowerBound, long upperBound) {
+        Ring ring = this.ring;
+        int i = ring.tokenIndex(upperBound);
+        return ring.tokenCount() > 0
+                && ring.token(i) == upperBound
+                && ring.token(i == 0 ? ring.tokenCount() - 1 : i - 1) == lowerBound
+                && ring.preferenceList(upperBound, 1)[0].equals(this.address);
+    }
+
+    // Walks down both trees from the root, one RPC per level, and returns the leaves whose hashes differ
+    private List<Integer> differingLeaves(String peer, MerkleTree tree)
+            throws ExecutionException, InterruptedException {
+        List<Integer> leaves = new ArrayList<>();
+        List<Integer> level = List.of(1);
+        while (!level.isEmpty()) {
+            ByteBuffer request = ByteBuffer.allocate(16 + 4 * level.size())
+                    .putLong(tree.lowerBound())
+                    .putLong(tree.upperBound());
+            level.forEach(request::putInt);
+            Rpc.Frame response = this.peerCall(peer, Rpc.MERKLE_HASHES, request.array()).get();
+            if (response.code() == Rpc.NOT_FOUND) {
+                // The peer's ring does not make it the primary of this range yet, or any longer
+                return List.of();
+            }
+            if (response.code() != Rpc.OK) {
+                throw new ExecutionException(new IOException(String.format("%s answered %d", peer, response.code())));
+            }
+            ByteBuffer hashes = ByteBuffer.wrap(response.payload());
+            List<Integer> next = new ArrayList<>();
+            for (int node : level) {
+                if (hashes.getLong() == tree.hash(node)) {
+                    continue;
+                }
+                if (!tree.isLeaf(node)) {
+                    next.add(2 * node);
+                    next.add(2 * node + 1);
+                } else if (tree.leaf(node) >= 0) {
+                    leaves.add(tree.leaf(node));
+                }
+            }
+            level = next;
+        }
+        return leaves;
+    }
+
+    // Reconciles one leaf with the primary: keys where the primary's copy is newer, or that only the
+    // primary has, are taken from the primary, and the rest of the keys that differ are sent to it.
+    // Deletes are tombstones reconciled like values, so copying a key only one side has never brings a
+    // deleted key back, as long as no replica misses a delete for longer than keyval.tombstoneGraceMinutes.
+    // Returns the number of keys repaired.
+    private int repairLeaf(String primary, long lowerBound, long upperBound, int leaf)
+            throws IOException, InterruptedException, ExecutionException, URISyntaxException {
+        long first = MerkleTree.leafFirst(lowerBound, leaf);
+        long last = MerkleTree.leafLast(lowerBound, upperBound, leaf);
+        TreeMap<byte[], byte[]> local = new TreeMap<>(Arrays::compare);
+        this.db.scanRange(first - 1, last, null, local::put);
+        TreeMap<byte[], byte[]> remote = new TreeMap<>(Arrays::compare);
+        HttpRequest streamRequest = this.acceptCompressed(HttpRequest.newBuilder())
+                .uri(new URI(String.format("http://%s/keys/stream?lower=%d&upper=%d", primary, first - 1, last)))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = this.peerSend(primary, "/keys/stream", streamRequest, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException(String.format("%s answered %d", primary, response.statusCode()));
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(this.responseStream(response)))) {
+            byte[][] entry;
+            while ((entry = HandoffStream.readEntry(in)) != null) {
+                remote.put(entry[0], entry[1]);
+            }
+        }
+
+        List<byte[]> pullKeys = new ArrayList<>();
+        List<byte[]> pullValues = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : remote.entrySet()) {
+            byte[] ours = local.get(entry.getKey());
+            if (Versioned.newer(entry.getKey(), entry.getValue(), ours)) {
+                pullKeys.add(entry.getKey());
+                pullValues.add(entry.getValue());
+            }
+            if (!Versioned.newer(entry.getKey(), ours, entry.getValue())) {
+                local.remove(entry.getKey());
+            }
+        }
+        if (!pullKeys.isEmpty() && !this.db.postBatch(pullKeys, pullValues)) {
+            throw new IOException("Unable to apply repaired keys");
+        }
+        if (!local.isEmpty()) {
+            List<byte[]> pairs = new ArrayList<>(2 * local.size());
+            local.forEach((key, value) -> {
+                pairs.add(key);
+                pairs.add(value);
+            });
+            Rpc.Frame pushed = this.peerCall(primary, Rpc.MULTI_PUT, Rpc.encodeList(pairs)).get();
+            if (pushed.code() != Rpc.OK) {
+                throw new IOException(String.format("%s answered %d", primary, pushed.code()));
+            }
+        }
+        return pullKeys.size() + local.size();
+    }
+
+    // A random live peer, or now and then a removed one, so that a node cut off by a partition is found
+    // again once the partition heals and can refute its removal
+    protected String gossipTarget() {
+        this.membershipLock.lock();
+        try {
+            List<String> live = this.membership.addresses(false);
+            live.remove(this.address);
+            List<String> removed = this.membership.addresses(true);
+            if (!removed.isEmpty() && Math.random() * (live.size() + 1) < removed.size()) {
+                return removed.get((int) (Math.random() * removed.size()));
+            }
+            return live.isEmpty() ? null : live.get((int) (Math.random() * live.size()));
+        } finally {
+            this.membershipLock.unlock();
+        }
+    }
+
+    // Suspects every live peer whose phi is over keyval.phiThreshold and removes the ones that have been
+    // suspected for keyval.suspectRemovalMs. Suspects stay in the ring, so a long GC pause or a few
+    // dropped packets cost some hints and retried reads rather than a rebalance.
+    protected void checkFailures() {
+        long now = System.currentTimeMillis();
+        Ring ring = this.ring;
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < ring.size(); i++) {
+            if (!ring.address(i).equals(this.address)) {
+                peers.add(ring.address(i));
+            }
+        }
+        // Peers that left the ring start over with a fresh window if they come back
+        this.failureDetector.retain(peers);
+        this.suspectedSince.keySet().retainAll(peers);
+        this.metrics.retain("keyval_peer_phi", "peer", peers);
+        for (String peer : peers) {
+            this.failureDetector.track(peer);
+            this.metrics.gauge("keyval_peer_phi", "Failure detector suspicion level of each peer",
+                    () -> this.failureDetector.phi(peer), "peer", peer);
+            double phi = this.failureDetector.phi(peer);
+            if (phi <= Config.PHI_THRESHOLD) {
+                if (this.suspectedSince.remove(peer) != null) {
+                    System.err.printf("Node at %s is no longer suspected (phi %.1f)\n", peer, phi);
+                }
+                continue;
+            }
+            Long since = this.suspectedSince.putIfAbsent(peer, now);
+            if (since == null) {
+                System.err.printf("Node at %s is suspected (phi %.1f)\n", peer, phi);
+            } else if (now - since >= Config.SUSPECT_REMOVAL_MS && this.removeMember(this.calculateID(peer))) {
+                System.err.printf("Node at %s was removed from the ring\n", peer);
+            }
+        }
+    }
+
+    protected boolean suspected(String address) {
+        return this.suspectedSince.containsKey(address);
+    }
+
+    // Applies gossiped entries, rebuilding the ring only if a member joined, left or moved
+    protected void mergeMembers(Map<Long, Membership.Member> updates) {
+        this.membershipLock.lock();
+        try {
+            if (this.membership.merge(updates, this.failureDetector::heartbeat)) {
+                this.rebuildRing();
+            }
+        } finally {
+            this.membershipLock.unlock();
+        }
+    }
+
+    // Marks the node removed and returns whether it had been live
+    protected boolean removeMember(long nodeId) {
+        this.membershipLock.lock();
+        try {
+            if (!this.membership.remove(nodeId)) {
+                return false;
+            }
+            String address = this.membership.get(nodeId).address();
+            this.failureDetector.forget(address);
+            this.suspectedSince.remove(address);
+            this.replicaLatency.forget(address);
+            this.rebuildRing();
+            return true;
+        } finally {
+            this.membershipLock.unlock();
+        }
     }
 
 }
@@ -0,0 +1,140 @@
+package com.evergreen.keyval;
+
+/**
+ * Tunables read from system properties, e.g.
+ * {@code java -Dkeyval.replicationFactor=3 -cp ... com.evergreen.keyval.Main localhost 3000}
+ */
+public class Config {
+
+    // N: number of nodes in each key's preference list
+    public static final int REPLICATION_FACTOR = intProperty("keyval.replicationFactor", 2);
+    // W: replica acknowledgements a write or delete waits for before answering the client
+    public static final int WRITE_QUORUM = intProperty("keyval.writeQuorum", 1);
+    // R: replica responses a read waits for before answering the client
+    public static final int READ_QUORUM = intProperty("keyval.readQuorum", 1);
+    // Tokens each physical node places on the ring; every node in a cluster must use the same value
+    public static final int VIRTUAL_NODES = intProperty("keyval.virtualNodes", 1);
+
+    // Phi above which a peer is suspected; suspects are skipped by replica calls but stay in the ring
+    public static final int PHI_THRESHOLD = intProperty("keyval.phiThreshold", 8);
+    // A peer that stays suspected this long is removed from the ring
+    public static final int SUSPECT_REMOVAL_MS = intProperty("keyval.suspectRemovalMs", 30000);
+
+    // When the write-ahead log is fsynced: never, leaving it to the OS ("none"), once per group commit
+    // of concurrent writes ("batch"), or for every write before it is acknowledged ("every-write")
+    public enum Fsync { NONE, BATCH, EVERY_WRITE }
+    public static final Fsync FSYNC = enumProperty("keyval.fsync", Fsync.NONE);
+    // With fsync=batch, a group commit takes up to this many queued key writes, waiting up to
+    // groupCommitWaitMicros first for more to arrive; 0 commits whatever is already queued
+    public static final int GROUP_COMMIT_MAX_WRITES = intProperty("keyval.groupCommitMaxWrites", 1024);
+    public static final int GROUP_COMMIT_WAIT_MICROS = intProperty("keyval.groupCommitWaitMicros", 0);
+
+    // How a joining node copies the ranges it takes over: as SST files built by the previous replica
+    // and ingested whole ("snapshot"), falling back to streaming if that fails, or only by streaming
+    // the keys through the write path ("stream")
+    public enum Bootstrap { SNAPSHOT, STREAM }
+    public static final Bootstrap BOOTSTRAP = enumProperty("keyval.bootstrap", Bootstrap.SNAPSHOT);
+
+    // Replicas close the iterator behind a client scan once it has been idle this long
+    public static final int SCAN_CURSOR_IDLE_MS = intProperty("keyval.scanCursorIdleMs", 60000);
+
+    // Size of the in-process cache of hot values in front of RocksDB reads; 0 disables it
+    public static final int CACHE_MAX_MB = intProperty("keyval.cacheMaxMb", 64);
+
+    // Each node keeps its RocksDB files in a directory named after its HTTP port under this one
+    public static final String DATA_DIR = System.getProperty("keyval.dataDir", "/tmp/db");
+    // RocksDB block cache shared by all column families, holding data, index and filter blocks
+    public static final int BLOCK_CACHE_MB = intProperty("keyval.blockCacheMb", 128);
+    // Bloom filter bits per key for reads of the data column family; 0 disables the filters
+    public static final int BLOOM_BITS_PER_KEY = intProperty("keyval.bloomBitsPerKey", 10);
+    // How RocksDB compacts the data column family: "level" keeps reads and space low, "universal"
+    // rewrites less for write-heavy loads at the cost of space. Choose before a node stores data.
+    public enum Compaction { LEVEL, UNIVERSAL }
+    public static final Compaction COMPACTION = enumProperty("keyval.compaction", Compaction.LEVEL);
+    // Compression of each LSM level from level 0 down, e.g. "lz4" or "none,none,lz4,lz4hc"; the last
+    // entry applies to every deeper level. Only files written after a change use it.
+    public static final String COMPRESSION = System.getProperty("keyval.compression", "none,none,lz4,lz4,lz4,lz4,lz4hc");
+    // Caps flush and compaction writes so they leave disk bandwidth to client requests; 0 is unlimited
+    public static final int COMPACTION_RATE_MB_PER_SEC = intProperty("keyval.compactionRateMbPerSec", 0);
+    // Size of each data memtable, and how many may be full and waiting to flush before writes stall
+    public static final int MEMTABLE_MB = intProperty("keyval.memtableMb", 64);
+    public static final int MAX_MEMTABLES = intProperty("keyval.maxMemtables", 3);
+    // Threads RocksDB runs flushes and compactions on
+    public static final int BACKGROUND_JOBS = intProperty("keyval.backgroundJobs", 4);
+    // How often each node reads its expiry index for tombstones and expired values past
+    // tombstoneGraceMinutes and purges them; both are hidden from reads either way. 0 disables the sweep.
+    public static final int TTL_SWEEP_INTERVAL_MS = intProperty("keyval.ttlSweepIntervalMs", 60000);
+    // How long tombstones and expired values are kept after they die, so that they still win over the
+    // older copies they replaced on replicas that missed them. Keep it above keyval.hintTtlMinutes and
+    // the longest outage a replica should recover from without being rebuilt.
+    public static final long TOMBSTONE_GRACE_MS = intProperty("keyval.tombstoneGraceMinutes", 1440) * 60_000L;
+
+    // How keys and node addresses are hashed to ring tokens: murmur3, or md5 for data and clusters
+    // created before partitioners were configurable. Unset, a node keeps the partitioner its data was
+    // written with, and a new node uses murmur3. Every node in a cluster must use the same one.
+    public enum PartitionerType { MURMUR3, MD5 }
+    public static final PartitionerType PARTITIONER = System.getProperty("keyval.partitioner") == null
+            ? null
+            : enumProperty("keyval.partitioner", PartitionerType.MURMUR3);
+
+    // Run HTTP handlers, replica calls and background tasks on virtual threads instead of platform threads
+    public static final boolean VIRTUAL_THREADS = Boolean.getBoolean("keyval.virtualThreads");
+
+    // The internal RPC transport listens on the HTTP port plus this offset on every node
+    public static final int RPC_PORT_OFFSET = intProperty("keyval.rpcPortOffset", 1000);
+    public static final int RPC_CONNECTIONS_PER_PEER = intProperty("keyval.rpcConnectionsPerPeer", 2);
+    public static final int RPC_TIMEOUT_MS = intProperty("keyval.rpcTimeoutMs", 5000);
+
+    // Compression of RPC payloads, range streams and gossip between nodes: "zstd", used with peers that
+    // advertise the same setting, or "none". Payloads under wireCompressionMinBytes are sent raw.
+    public enum WireCompression { ZSTD, NONE }
+    public static final WireCompression WIRE_COMPRESSION = enumProperty("keyval.wireCompression", WireCompression.ZSTD);
+    public static final int WIRE_COMPRESSION_MIN_BYTES = intProperty("keyval.wireCompressionMinBytes", 512);
+    // Zstandard level; negative levels trade ratio for speed
+    public static final int WIRE_COMPRESSION_LEVEL = intProperty("keyval.wireCompressionLevel", 1);
+    // A Zstandard dictionary file, e.g. from zstd --train over sample values, for small values that
+    // compress poorly alone; only peers that load the same dictionary compress for each other
+    public static final String WIRE_DICTIONARY = System.getProperty("keyval.wireDictionary");
+
+    // A replica write that fails or takes longer than this is stored as a hint and acknowledged
+    public static final int HINT_DEADLINE_MS = intProperty("keyval.hintDeadlineMs", 1000);
+    // Hints that could not be delivered within this long are dropped
+    public static final long HINT_TTL_MS = intProperty("keyval.hintTtlMinutes", 180) * 60_000L;
+
+    // A read a replica has not answered within this percentile of its recent read latencies is also
+    // sent to the next replica; 0 disables hedging
+    public static final int HEDGE_PERCENTILE = intProperty("keyval.hedgePercentile", 95);
+    // Bounds on the hedge deadline; replicas without enough reads yet are hedged after the maximum
+    public static final int HEDGE_MIN_DELAY_MS = intProperty("keyval.hedgeMinDelayMs", 5);
+    public static final int HEDGE_MAX_DELAY_MS = intProperty("keyval.hedgeMaxDelayMs", 200);
+
+    // Each anti-entropy round compares one replicated range with its primary replica; 0 disables it
+    public static final int ANTI_ENTROPY_INTERVAL_MS = intProperty("keyval.antiEntropyIntervalMs", 10000);
+
+    // Parses values like "every-write" into the constant EVERY_WRITE
+    protected static <E extends Enum<E>> E enumProperty(String name, E defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.printf("Ignoring invalid value %s for %s\n", value, name);
+            return defaultValue;
+        }
+    }
+
+    protected static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.printf("Ignoring invalid value %s for %s\n", value, name);
+            return defaultValue;
+        }
+    }
+}
@@ -1,40 +1,629 @@
 package com.evergreen.keyval;
 
 
-import io.javalin.http.Handler;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.EnvOptions;
+import org.rocksdb.IngestExternalFileOptions;
+import org.rocksdb.HistogramData;
+import org.rocksdb.HistogramType;
+import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
-import org.rocksdb.Options;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.SstFileReader;
+import org.rocksdb.SstFileReaderIterator;
+import org.rocksdb.SstFileWriter;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Stores every key under its 8-byte ring token followed by the key itself, so the keys owned by a
+ * token range are contiguous on disk and range reads/deletes become a seek plus a bounded scan.
+ * Tokens are written big-endian with the sign bit flipped so that RocksDB's unsigned byte ordering
+ * matches the signed ordering of the ring.
+ *
+ * Values are stored {@link Versioned}, and a write only replaces a copy with an older version, so
+ * replica writes, hints, handoffs and repairs can arrive in any order and still leave the newest copy.
+ *
+ * With {@code keyval.fsync=batch} writes are group committed: callers queue them, and whichever
+ * caller gets the commit lock applies everything queued so far as one WriteBatch with one fsync while
+ * the others wait for it. A lone writer commits its own write straight away. With the other fsync
+ * policies every caller commits its own writes.
+ *
+ * Reads of single keys and multiGets go through a {@link ValueCache} of hot values, which every commit
+ * updates as it applies a write, whether it came from a client, a hint, a handoff or a repair.
+ *
+ * Deletes are writes of {@link Versioned} tombstones and go through the same version check as values,
+ * so a late delete never removes a newer write. Tombstones and expired values are dead copies: the
+ * client reads here hide them, while getStored and multiGetStored return them so coordinators can
+ * compare them with the other replicas' copies. Every copy that can die, a tombstone or a value with a
+ * TTL, has an entry keyed by {@code [long expiresAt][storage key]} in the expiry column family, and a
+ * background sweep every {@code keyval.ttlSweepIntervalMs} reads that index up to now minus
+ * keyval.tombstoneGraceMinutes and purges the copies it names, so it never visits live data. Index
+ * entries left behind by an overwrite or a range delete are dropped by the sweep when it reaches them.
+ * Purging is a delete-based sweep, not a compaction filter: the RocksDB Java binding in use cannot run
+ * a filter written in Java, so each purged copy costs a RocksDB delete that compaction must later drop.
+ * Index entries are removed with single deletes, which compaction drops together with the entry they
+ * delete as soon as the two meet instead of carrying them down to the bottom level.
+ *
+ * Alongside the data it keeps the running hash of every {@link MerkleTree} segment. Writes read the
+ * value they replace so the segment hash can be updated in place, under a lock striped by token so
+ * that range deletes and rehashes never interleave with a commit.
+ */
 public class DBClient {
 
+    private static final byte[] DATA_COLUMN_FAMILY = "data".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VALUES_COLUMN_FAMILY = "values".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HINTS_COLUMN_FAMILY = "hints".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] META_COLUMN_FAMILY = "meta".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EXPIRY_COLUMN_FAMILY = "expiry".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PARTITIONER_KEY = "partitioner".getBytes(StandardCharsets.UTF_8);
+    // Set in the meta column family once the expiry index covers every stored copy
+    private static final byte[] EXPIRY_INDEX_KEY = "expiryIndex".getBytes(StandardCharsets.UTF_8);
+    private static final int EXPIRES_AT_LENGTH = 8;
+    private static final int TOKEN_LENGTH = 8;
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+    private static final int LOCK_STRIPES = 64;
+    private static final int SWEEP_BATCH_SIZE = 1000;
+
+    // Writes queued by one caller; values are encoded by Versioned, with null for deletes
+    private record PendingWrite(List<byte[]> keys, List<byte[]> storageKeys, List<byte[]> values, Thread writer,
+                                CompletableFuture<List<byte[]>> replaced) {}
+
+    // Visits a key and its stored, versioned value
+    public interface RangeVisitor {
+        void visit(byte[] key, byte[] stored) throws IOException;
+    }
+
+    // Pages through the tokens [from, to] with one iterator, which reads the data as it was when the
+    // cursor was opened. Scans bypass the block cache so they do not evict the hot blocks of point
+    // reads.
+    public class ScanCursor implements AutoCloseable {
+        private final long to;
+        private final ReadOptions readOptions;
+        private final RocksIterator iter;
+
+        private ScanCursor(long from, long to, byte[] after) {
+            this.to = to;
+            this.readOptions = new ReadOptions().setFillCache(false);
+            this.iter = DBClient.this.db.newIterator(DBClient.this.dataHandle, this.readOptions);
+            if (after == null) {
+                this.iter.seek(encodeToken(from));
+            } else {
+                byte[] afterKey = DBClient.this.storageKey(after);
+                this.iter.seek(afterKey);
+                if (this.iter.isValid() && Arrays.equals(this.iter.key(), afterKey)) {
+                    this.iter.next();
+                }
+            }
+        }
+
+        private boolean hasNext() {
+            return this.iter.isValid() && decodeToken(this.iter.key()) <= this.to;
+        }
+
+        // Visits up to limit more keys, passing over dead ones; returns whether any are left
+        public boolean next(int limit, RangeVisitor visitor) throws IOException {
+            long now = System.currentTimeMillis();
+            int visited = 0;
+            while (visited < limit && this.hasNext()) {
+                byte[] stored = this.iter.value();
+                if (Versioned.live(stored, now)) {
+                    visitor.visit(userKey(this.iter.key()), stored);
+                    visited++;
+                }
+                this.iter.next();
+            }
+            return this.hasNext();
+        }
+
+        @Override
+        public void close() {
+            this.iter.close();
+            this.readOptions.close();
+        }
+    }
+
     private RocksDB db;
-    private MessageDigest md;
-    public DBClient(int port) {
-        try (final Options options = new Options().setCreateIfMissing(true)) {
-            this.db = RocksDB.open(options, String.format("/tmp/db/%d", port));
-        } catch (RocksDBException e) {
+    private Path directory;
+    private ColumnFamilyHandle legacyHandle;
+    private ColumnFamilyHandle unversionedHandle;
+    private ColumnFamilyHandle dataHandle;
+    private HintLog hints;
+    private ColumnFamilyHandle metaHandle;
+    // [long expiresAt][storage key] of every tombstone and value with a TTL, with empty values
+    private ColumnFamilyHandle expiryHandle;
+    private Partitioner partitioner;
+    private final AtomicLongArray segmentHashes = new AtomicLongArray(MerkleTree.SEGMENTS);
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final HybridClock clock = new HybridClock();
+    private final ConcurrentLinkedQueue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    // Held by the caller committing the queue
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private WriteOptions writeOptions;
+    // Hot values, or null when keyval.cacheMaxMb is 0
+    private final ValueCache cache = Config.CACHE_MAX_MB > 0 ? new ValueCache(Config.CACHE_MAX_MB * 1024L * 1024L) : null;
+    private final Metrics metrics;
+    private final Metrics.Histogram groupCommitWrites;
+    // RocksDB's own tickers and timings, exported through metrics
+    private final Statistics statistics;
+    private final StorageProfile profile;
+    public DBClient(int port, Metrics metrics) {
+        // Statistics is a native object, so the library must be loaded even before RocksDB.open
+        RocksDB.loadLibrary();
+        this.statistics = new Statistics();
+        this.profile = new StorageProfile(this.statistics);
+        this.metrics = metrics;
+        this.groupCommitWrites = metrics.histogram("keyval_group_commit_writes", "Key writes coalesced into each group commit");
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+
+        // Keys written before the token-prefixed layout live in the default column family, and keys
+        // written before values were versioned in the data column family; both are moved into the
+        // values column family on open. Only the values column family is tuned for client reads and
+        // writes; see StorageProfile.
+        List<ColumnFamilyDescriptor> descriptors = List.of(
+                new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, this.profile.internalOptions()),
+                new ColumnFamilyDescriptor(DATA_COLUMN_FAMILY, this.profile.internalOptions()),
+                new ColumnFamilyDescriptor(HINTS_COLUMN_FAMILY, this.profile.internalOptions()),
+                new ColumnFamilyDescriptor(VALUES_COLUMN_FAMILY, this.profile.dataOptions()),
+                new ColumnFamilyDescriptor(META_COLUMN_FAMILY, this.profile.internalOptions()),
+                new ColumnFamilyDescriptor(EXPIRY_COLUMN_FAMILY, this.profile.internalOptions()));
+        List<ColumnFamilyHandle> handles = new ArrayList<>();
+        this.directory = Path.of(Config.DATA_DIR, String.valueOf(port));
+        try {
+            // RocksDB creates the node's directory but not keyval.dataDir itself
+            Files.createDirectories(this.directory.getParent());
+            this.db = RocksDB.open(this.profile.dbOptions(), this.directory.toString(), descriptors, handles);
+            this.legacyHandle = handles.get(0);
+            this.unversionedHandle = handles.get(1);
+            this.hints = new HintLog(this.db, handles.get(2));
+            this.dataHandle = handles.get(3);
+            this.metaHandle = handles.get(4);
+            this.expiryHandle = handles.get(5);
+            this.writeOptions = new WriteOptions().setSync(Config.FSYNC != Config.Fsync.NONE);
+            this.partitioner = this.openPartitioner(port);
+        } catch (RocksDBException | IOException e) {
             System.err.printf("Unable to open RocksDB on %d\n", port);
             e.printStackTrace();
-            this.db.close();
+            return;
+        }
+
+        // Range snapshots that were being sent or ingested when the node stopped
+        try (DirectoryStream<Path> staged = Files.newDirectoryStream(this.directory, "{export,snapshot}-*.sst")) {
+            for (Path file : staged) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        this.migrateLegacyKeys(port, this.legacyHandle, true, "the token-prefixed layout");
+        this.migrateLegacyKeys(port, this.unversionedHandle, false, "versioned values");
+        this.buildExpiryIndex(port);
+        this.rehashSegments(Long.MIN_VALUE, Long.MAX_VALUE);
+        this.registerMetrics();
+        if (Config.TTL_SWEEP_INTERVAL_MS > 0) {
+            Threads.scheduler("ttl-sweep-").scheduleWithFixedDelay(this::sweepExpired,
+                    Config.TTL_SWEEP_INTERVAL_MS, Config.TTL_SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final TickerType[] TICKERS = {
+            TickerType.BLOCK_CACHE_HIT, TickerType.BLOCK_CACHE_MISS, TickerType.MEMTABLE_HIT, TickerType.MEMTABLE_MISS,
+            TickerType.BYTES_READ, TickerType.BYTES_WRITTEN, TickerType.WAL_FILE_SYNCED, TickerType.STALL_MICROS,
+            TickerType.COMPACT_READ_BYTES, TickerType.COMPACT_WRITE_BYTES, TickerType.FLUSH_WRITE_BYTES};
+    private static final HistogramType[] HISTOGRAMS = {
+            HistogramType.DB_GET, HistogramType.DB_WRITE, HistogramType.WAL_FILE_SYNC_MICROS, HistogramType.COMPACTION_TIME};
+    private static final String[] PROPERTIES = {
+            "rocksdb.estimate-num-keys", "rocksdb.estimate-pending-compaction-bytes", "rocksdb.num-running-compactions",
+            "rocksdb.cur-size-all-mem-tables", "rocksdb.total-sst-files-size", "rocksdb.actual-delayed-write-rate",
+            "rocksdb.block-cache-usage", "rocksdb.block-cache-pinned-usage", "rocksdb.estimate-table-readers-mem"};
+
+    // RocksDB tickers become counters, and its histograms, which it keeps in microseconds, gauges of the
+    // percentiles it computes plus counters of their totals; properties of the data column family, and of
+    // the block cache it shares with the others, become gauges
+    private void registerMetrics() {
+        for (TickerType ticker : TICKERS) {
+            this.metrics.counter("keyval_rocksdb_ticker_total", "RocksDB statistics tickers",
+                    () -> this.statistics.getTickerCount(ticker), "ticker", ticker.name().toLowerCase());
+        }
+        for (HistogramType histogram : HISTOGRAMS) {
+            String name = histogram.name().toLowerCase().replace("_micros", "");
+            double[] quantiles = {0.5, 0.95, 0.99};
+            for (double quantile : quantiles) {
+                this.metrics.gauge("keyval_rocksdb_latency_seconds", "Percentiles of RocksDB statistics histograms since the node started",
+                        () -> {
+                            HistogramData data = this.statistics.getHistogramData(histogram);
+                            double micros = quantile == 0.5 ? data.getMedian()
+                                    : quantile == 0.95 ? data.getPercentile95() : data.getPercentile99();
+                            return micros / 1e6;
+                        }, "histogram", name, "quantile", String.valueOf(quantile));
+            }
+            this.metrics.counter("keyval_rocksdb_latency_seconds_total", "Total time recorded by RocksDB statistics histograms",
+                    () -> this.statistics.getHistogramData(histogram).getSum() / 1e6, "histogram", name);
+            this.metrics.counter("keyval_rocksdb_operations_total", "Operations recorded by RocksDB statistics histograms",
+                    () -> this.statistics.getHistogramData(histogram).getCount(), "histogram", name);
+        }
+        for (String property : PROPERTIES) {
+            this.metrics.gauge("keyval_rocksdb_property", "RocksDB properties of the data column family", () -> {
+                try {
+                    return this.db.getLongProperty(this.dataHandle, property);
+                } catch (RocksDBException e) {
+                    return Double.NaN;
+                }
+            }, "property", property.substring("rocksdb.".length()));
+        }
+        if (this.cache != null) {
+            for (String stat : List.of("bytes", "entries")) {
+                this.metrics.gauge("keyval_cache_" + stat, "Value cache " + stat,
+                        () -> ((Number) this.cache.stats().get(stat)).doubleValue());
+            }
+            for (String stat : List.of("hits", "misses", "evictions", "rejections")) {
+                this.metrics.counter("keyval_cache_" + stat + "_total", "Value cache " + stat,
+                        () -> ((Number) this.cache.stats().get(stat)).doubleValue());
+            }
+        }
+    }
+
+    // The partitioner the data was written with, recorded in the meta column family; data from before
+    // it was recorded was written with MD5. An explicit keyval.partitioner that differs is refused,
+    // since every stored key and the node's place in the ring depend on it.
+    private Partitioner openPartitioner(int port) throws RocksDBException {
+        byte[] recorded = this.db.get(this.metaHandle, PARTITIONER_KEY);
+        Config.PartitionerType stored = null;
+        if (recorded != null) {
+            stored = Config.PartitionerType.valueOf(new String(recorded, StandardCharsets.UTF_8));
+        } else if (!this.isEmpty(this.dataHandle) || !this.isEmpty(this.unversionedHandle) || !this.isEmpty(this.legacyHandle)) {
+            stored = Config.PartitionerType.MD5;
+        }
+        if (stored != null && Config.PARTITIONER != null && stored != Config.PARTITIONER) {
+            throw new IllegalStateException(String.format(
+                    "Data on %d was written with the %s partitioner, but keyval.partitioner is %s",
+                    port, stored, Config.PARTITIONER));
+        }
+        Config.PartitionerType type = Config.PARTITIONER != null ? Config.PARTITIONER
+                : stored != null ? stored : Config.PartitionerType.MURMUR3;
+        if (recorded == null) {
+            this.db.put(this.metaHandle, PARTITIONER_KEY, type.name().getBytes(StandardCharsets.UTF_8));
+        }
+        return Partitioner.of(type);
+    }
+
+    private boolean isEmpty(ColumnFamilyHandle handle) {
+        try (final RocksIterator iter = this.db.newIterator(handle)) {
+            iter.seekToFirst();
+            return !iter.isValid();
+        }
+    }
+
+    // Each batch moves keys and deletes their legacy copies atomically, so an interrupted
+    // migration simply resumes with whatever is left in the legacy column family. Legacy values get
+    // version 0, so any write made since wins over them.
+    private void migrateLegacyKeys(int port, ColumnFamilyHandle from, boolean prefixTokens, String layout) {
+        int migrated = 0;
+        try (final RocksIterator iter = this.db.newIterator(from);
+             final WriteBatch batch = new WriteBatch();
+             final WriteOptions writeOptions = new WriteOptions()) {
+            iter.seekToFirst();
+            while (iter.isValid()) {
+                byte[] key = iter.key();
+                batch.put(this.dataHandle, prefixTokens ? this.storageKey(key) : key, Versioned.encode(0, iter.value()));
+                batch.delete(from, key);
+                migrated++;
+                if (migrated % MIGRATION_BATCH_SIZE == 0) {
+                    this.db.write(writeOptions, batch);
+                    batch.clear();
+                }
+                iter.next();
+            }
+            if (batch.count() > 0) {
+                this.db.write(writeOptions, batch);
+            }
+        } catch (RocksDBException e) {
+            System.err.printf("Unable to migrate keys on %d to %s\n", port, layout);
+            e.printStackTrace();
+            return;
+        }
+        if (migrated > 0) {
+            System.err.printf("Migrated %d keys on %d to %s\n", migrated, port, layout);
+        }
+    }
+
+    // Indexes the copies written before the expiry index existed, with one pass over the data the
+    // first time the node opens it
+    private void buildExpiryIndex(int port) {
+        int indexed = 0;
+        try (final RocksIterator iter = this.db.newIterator(this.dataHandle);
+             final WriteBatch batch = new WriteBatch();
+             final WriteOptions writeOptions = new WriteOptions()) {
+            if (this.db.get(this.metaHandle, EXPIRY_INDEX_KEY) != null) {
+                return;
+            }
+            iter.seekToFirst();
+            while (iter.isValid()) {
+                long expiresAt = Versioned.expiresAt(iter.value());
+                if (expiresAt != 0) {
+                    batch.put(this.expiryHandle, expiryKey(expiresAt, iter.key()), new byte[0]);
+                    indexed++;
+                    if (indexed % MIGRATION_BATCH_SIZE == 0) {
+                        this.db.write(writeOptions, batch);
+                        batch.clear();
+                    }
+                }
+                iter.next();
+            }
+            batch.put(this.metaHandle, EXPIRY_INDEX_KEY, new byte[0]);
+            this.db.write(writeOptions, batch);
+        } catch (RocksDBException e) {
+            System.err.printf("Unable to build the expiry index on %d\n", port);
+            e.printStackTrace();
+            return;
+        }
+        if (indexed > 0) {
+            System.err.printf("Indexed %d expiring keys on %d\n", indexed, port);
+        }
+    }
+
+    public HintLog hints() {
+        return this.hints;
+    }
+
+    public Partitioner partitioner() {
+        return this.partitioner;
+    }
+
+    // Where RocksDB keeps its files; range snapshots are staged here so ingestion can hard-link them
+    public Path directory() {
+        return this.directory;
+    }
+
+    // A version for a new write coordinated by this node
+    public long nextVersion() {
+        return this.clock.now();
+    }
+
+    private long token(byte[] key) {
+        return this.partitioner.token(key);
+    }
+
+    private static byte[] encodeToken(long token) {
+        return ByteBuffer.allocate(TOKEN_LENGTH).putLong(token ^ Long.MIN_VALUE).array();
+    }
+
+    private static long decodeToken(byte[] storageKey) {
+        return ByteBuffer.wrap(storageKey, 0, TOKEN_LENGTH).getLong() ^ Long.MIN_VALUE;
+    }
+
+    private byte[] storageKey(byte[] key) {
+        return ByteBuffer.allocate(TOKEN_LENGTH + key.length)
+                .putLong(this.token(key) ^ Long.MIN_VALUE)
+                .put(key)
+                .array();
+    }
+
+    private static byte[] userKey(byte[] storageKey) {
+        return Arrays.copyOfRange(storageKey, TOKEN_LENGTH, storageKey.length);
+    }
+
+    // Expiry times are positive, so the index sorts by them
+    private static byte[] expiryKey(long expiresAt, byte[] storageKey) {
+        return ByteBuffer.allocate(EXPIRES_AT_LENGTH + storageKey.length)
+                .putLong(expiresAt)
+                .put(storageKey)
+                .array();
+    }
+
+    // When a copy dies, or 0 if it is missing or never does
+    private static long expiresAt(byte[] stored) {
+        return stored == null ? 0 : Versioned.expiresAt(stored);
+    }
+
+    // Moves the key's expiry index entry along with a write of newValue over oldValue; null means absent.
+    // An entry is put when its copy is stored and single-deleted when the copy is replaced or purged. An
+    // entry put twice, as when a snapshot or a write brings back a copy whose entry a range delete left
+    // behind, may reappear once compaction drops the single delete with the later put; the sweep then
+    // finds the copy gone or changed and removes the entry again.
+    private void indexExpiry(WriteBatch batch, byte[] storageKey, byte[] oldValue, byte[] newValue) throws RocksDBException {
+        long oldExpiresAt = expiresAt(oldValue);
+        long newExpiresAt = expiresAt(newValue);
+        if (oldExpiresAt == newExpiresAt) {
+            return;
         }
+        if (oldExpiresAt != 0) {
+            batch.singleDelete(this.expiryHandle, expiryKey(oldExpiresAt, storageKey));
+        }
+        if (newExpiresAt != 0) {
+            batch.put(this.expiryHandle, expiryKey(newExpiresAt, storageKey), new byte[0]);
+        }
+    }
+
+    // Locks the stripes of all the keys in a fixed order, so batches cannot deadlock each other
+    private List<ReentrantLock> lockAll(List<byte[]> storageKeys) {
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (byte[] storageKey : storageKeys) {
+            stripes[(int) decodeToken(storageKey) & (LOCK_STRIPES - 1)] = true;
+        }
+        List<ReentrantLock> held = new ArrayList<>();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                this.locks[i].lock();
+                held.add(this.locks[i]);
+            }
+        }
+        return held;
+    }
 
+    // Folds the replacement of oldValue by newValue into the key's segment hash and the cache; null
+    // means absent
+    private void updateSegment(byte[] storageKey, byte[] oldValue, byte[] newValue) {
+        byte[] key = userKey(storageKey);
+        if (this.cache != null) {
+            this.cache.write(new String(key, StandardCharsets.UTF_8), newValue);
+        }
+        long delta = (oldValue == null ? 0 : MerkleTree.entryHash(key, oldValue))
+                ^ (newValue == null ? 0 : MerkleTree.entryHash(key, newValue));
+        if (delta != 0) {
+            this.segmentHashes.accumulateAndGet(MerkleTree.segment(decodeToken(storageKey)), delta, (a, b) -> a ^ b);
+        }
+    }
+
+    // Recomputes the hashes of the segments that overlap [from, to] by scanning them
+    private void rehashSegments(long from, long to) {
+        int first = MerkleTree.segment(from);
+        int last = MerkleTree.segment(to);
+        long[] hashes = new long[last - first + 1];
+        try (final RocksIterator iter = this.db.newIterator(this.dataHandle)) {
+            iter.seek(encodeToken(MerkleTree.segmentStart(first)));
+            while (iter.isValid()) {
+                byte[] key = iter.key();
+                int segment = MerkleTree.segment(decodeToken(key));
+                if (segment > last) {
+                    break;
+                }
+                hashes[segment - first] ^= MerkleTree.entryHash(userKey(key), iter.value());
+                iter.next();
+            }
+        }
+        for (int i = 0; i < hashes.length; i++) {
+            this.segmentHashes.set(first + i, hashes[i]);
+        }
+    }
+
+    // Collects every live key whose token lies in [from, to]
+    private void collectTokenRange(long from, long to, HashMap<String, String> result) {
+        long now = System.currentTimeMillis();
+        try (final RocksIterator iter = this.db.newIterator(this.dataHandle)) {
+            iter.seek(encodeToken(from));
+            while (iter.isValid()) {
+                byte[] key = iter.key();
+                if (decodeToken(key) > to) {
+                    break;
+                }
+                byte[] stored = iter.value();
+                if (Versioned.live(stored, now)) {
+                    result.put(new String(userKey(key), StandardCharsets.UTF_8),
+                            new String(Versioned.value(stored), StandardCharsets.UTF_8));
+                }
+                iter.next();
+            }
+        }
+    }
+
+    // Visits every key whose token lies in [from, to], starting after the given storage key if there is one
+    private void scanTokenRange(long from, long to, byte[] after, RangeVisitor visitor) throws IOException {
+        try (final RocksIterator iter = this.db.newIterator(this.dataHandle)) {
+            if (after == null) {
+                iter.seek(encodeToken(from));
+            } else {
+                iter.seek(after);
+                if (iter.isValid() && Arrays.equals(iter.key(), after)) {
+                    iter.next();
+                }
+            }
+            while (iter.isValid()) {
+                byte[] key = iter.key();
+                if (decodeToken(key) > to) {
+                    break;
+                }
+                visitor.visit(userKey(key), iter.value());
+                iter.next();
+            }
+        }
+    }
+
+    // Deletes every key whose token lies in [from, to]. Takes every lock stripe, since the keys are not
+    // known up front, and rehashes the segments at either end that the range only partly covers.
+    private void deleteTokenRange(long from, long to) {
+        for (ReentrantLock lock : this.locks) {
+            lock.lock();
+        }
         try {
-            this.md = MessageDigest.getInstance("MD5");
-        } catch (java.security.NoSuchAlgorithmException e) {
+            this.deleteTokenRangeLocked(from, to);
+            if (this.cache != null) {
+                this.cache.clear();
+            }
+            for (int segment = MerkleTree.segment(from) + 1; segment < MerkleTree.segment(to); segment++) {
+                this.segmentHashes.set(segment, 0);
+            }
+            this.rehashSegments(from, from);
+            this.rehashSegments(to, to);
+        } finally {
+            for (ReentrantLock lock : this.locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void deleteTokenRangeLocked(long from, long to) {
+        try {
+            if (to < Long.MAX_VALUE) {
+                this.db.deleteRange(this.dataHandle, encodeToken(from), encodeToken(to + 1));
+                return;
+            }
+            // deleteRange has an exclusive end, so keys carrying the maximum token are removed one by one
+            this.db.deleteRange(this.dataHandle, encodeToken(from), encodeToken(Long.MAX_VALUE));
+            try (final RocksIterator iter = this.db.newIterator(this.dataHandle)) {
+                iter.seek(encodeToken(Long.MAX_VALUE));
+                while (iter.isValid()) {
+                    this.db.delete(this.dataHandle, iter.key());
+                    iter.next();
+                }
+            }
+        } catch (RocksDBException e) {
+            System.err.printf("Unable to delete token range [%d, %d]\n", from, to);
             e.printStackTrace();
         }
     }
 
+    // The key's value, or null if it is missing or dead
     public byte[] get(String key) {
+        byte[] stored = this.getStored(key);
+        return Versioned.live(stored, System.currentTimeMillis()) ? Versioned.value(stored) : null;
+    }
+
+    // The key's copy with its version, as encoded by Versioned, dead or alive
+    public byte[] getStored(String key) {
+        if (this.cache == null) {
+            return this.readStored(key);
+        }
+        byte[] stored = this.cache.get(key);
+        if (stored == null) {
+            long stamp = this.cache.stamp(key);
+            stored = this.readStored(key);
+            this.cache.fill(key, stored, stamp);
+        }
+        return stored;
+    }
+
+    private byte[] readStored(String key) {
         try {
-            return this.db.get(key.getBytes());
+            return this.db.get(this.dataHandle, this.storageKey(key.getBytes(StandardCharsets.UTF_8)));
         } catch (RocksDBException e) {
             System.err.printf("Unable to get value for key %s\n", key);
             e.printStackTrace();
@@ -42,160 +631,617 @@ public class DBClient {
         }
     }
 
-    public HashMap<String, String> lowerBoundGet(long lowerBound) {
-        final RocksIterator iter = this.db.newIterator();
-        iter.seekToFirst();
+    // Looks up all the keys in one multiGet; missing and dead keys are null in the returned list
+    public List<byte[]> multiGet(List<String> keys) {
+        List<byte[]> stored = this.multiGetStored(keys);
+        if (stored == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        List<byte[]> values = new ArrayList<>(stored.size());
+        for (byte[] value : stored) {
+            values.add(Versioned.live(value, now) ? Versioned.value(value) : null);
+        }
+        return values;
+    }
 
-        HashMap<String, String> result = new HashMap<>();
-        while (iter.isValid()) {
-            byte[] key = iter.key();
-            byte[] digest = this.md.digest(key);
-            if (ByteBuffer.wrap(digest).getLong() > lowerBound) {
-                String keyString = new String(key);
-                String val = new String(iter.value());
-                result.put(keyString, val);
+    // Like multiGet, but with the copies' versions, as encoded by Versioned, dead or alive
+    public List<byte[]> multiGetStored(List<String> keys) {
+        return this.cache == null ? this.readStored(keys) : this.readCached(keys);
+    }
+
+    private List<byte[]> readCached(List<String> keys) {
+        List<byte[]> stored = new ArrayList<>(keys.size());
+        List<String> missed = new ArrayList<>();
+        List<Long> stamps = new ArrayList<>();
+        for (String key : keys) {
+            byte[] value = this.cache.get(key);
+            stored.add(value);
+            if (value == null) {
+                missed.add(key);
+                stamps.add(this.cache.stamp(key));
             }
-            iter.next();
         }
-        return result;
+        if (missed.isEmpty()) {
+            return stored;
+        }
+        List<byte[]> read = this.readStored(missed);
+        if (read == null) {
+            return null;
+        }
+        for (int i = 0, j = 0; i < stored.size(); i++) {
+            if (stored.get(i) == null) {
+                this.cache.fill(missed.get(j), read.get(j), stamps.get(j));
+                stored.set(i, read.get(j++));
+            }
+        }
+        return stored;
     }
 
-    public HashMap<String, String> upperBoundGet(long upperBound) {
-        final RocksIterator iter = this.db.newIterator();
-        iter.seekToFirst();
+    private List<byte[]> readStored(List<String> keys) {
+        List<byte[]> storageKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            storageKeys.add(this.storageKey(key.getBytes(StandardCharsets.UTF_8)));
+        }
+        try {
+            return this.db.multiGetAsList(Collections.nCopies(keys.size(), this.dataHandle), storageKeys);
+        } catch (RocksDBException e) {
+            System.err.printf("Unable to get values for %d keys\n", keys.size());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Hit, miss and eviction counts of the value cache; only maxBytes, 0, if it is disabled
+    public Map<String, Object> cacheStats() {
+        return this.cache == null ? Map.of("maxBytes", 0L) : this.cache.stats();
+    }
 
+    public HashMap<String, String> lowerBoundGet(long lowerBound) {
         HashMap<String, String> result = new HashMap<>();
-        while (iter.isValid()) {
-            byte[] key = iter.key();
-            byte[] digest = this.md.digest(key);
-            if (ByteBuffer.wrap(digest).getLong() <= upperBound) {
-                String keyString = new String(key);
-                String val = new String(iter.value());
-                result.put(keyString, val);
-            }
-            iter.next();
+        if (lowerBound < Long.MAX_VALUE) {
+            this.collectTokenRange(lowerBound + 1, Long.MAX_VALUE, result);
         }
         return result;
     }
 
-    public HashMap<String, String> getAll() {
-        final RocksIterator iter = this.db.newIterator();
-        iter.seekToFirst();
+    public HashMap<String, String> upperBoundGet(long upperBound) {
+        HashMap<String, String> result = new HashMap<>();
+        this.collectTokenRange(Long.MIN_VALUE, upperBound, result);
+        return result;
+    }
 
+    public HashMap<String, String> getAll() {
         HashMap<String, String> result = new HashMap<>();
-        while (iter.isValid()) {
-            byte[] key = iter.key();
-            String keyString = new String(key);
-            String val = new String(iter.value());
-            result.put(keyString, val);
-            iter.next();
-        }
+        this.collectTokenRange(Long.MIN_VALUE, Long.MAX_VALUE, result);
         return result;
     }
 
+    // Returns the keys in the ring range (lowerBound, upperBound], wrapping past the end of the
+    // ring when lowerBound >= upperBound
     public HashMap<String, String> boundGet(long lowerBound, long upperBound) {
-        final RocksIterator iter = this.db.newIterator();
-        iter.seekToFirst();
-
         HashMap<String, String> result = new HashMap<>();
-        while (iter.isValid()) {
-            byte[] key = iter.key();
-            byte[] digest = this.md.digest(key);
-            long digestDec = ByteBuffer.wrap(digest).getLong();
-            if (digestDec <= upperBound && digestDec > lowerBound) {
-                String keyString = new String(key);
-                String val = new String(iter.value());
-                result.put(keyString, val);
+        if (lowerBound < upperBound) {
+            this.collectTokenRange(lowerBound + 1, upperBound, result);
+        } else {
+            if (lowerBound < Long.MAX_VALUE) {
+                this.collectTokenRange(lowerBound + 1, Long.MAX_VALUE, result);
             }
-            iter.next();
+            this.collectTokenRange(Long.MIN_VALUE, upperBound, result);
         }
         return result;
     }
 
-    public void deleteAll() {
-        final RocksIterator iter = this.db.newIterator();
-        iter.seekToFirst();
+    // Deletes the keys in the ring range (lowerBound, upperBound], wrapping like boundGet
+    public void boundDelete(long lowerBound, long upperBound) {
+        if (lowerBound < upperBound) {
+            this.deleteTokenRange(lowerBound + 1, upperBound);
+        } else {
+            this.lowerBoundDelete(lowerBound);
+            this.deleteTokenRange(Long.MIN_VALUE, upperBound);
+        }
+    }
 
-        while (iter.isValid()) {
-            byte[] key = iter.key();
-            try {
-                this.db.delete(key);
-            } catch (RocksDBException e) {
-                e.printStackTrace();
+    // Visits the keys in the ring range (lowerBound, upperBound] in ring order without materializing
+    // the range, resuming after the given key when a transfer is retried
+    public void scanRange(long lowerBound, long upperBound, String after, RangeVisitor visitor) throws IOException {
+        byte[] afterKey = after == null ? null : this.storageKey(after.getBytes(StandardCharsets.UTF_8));
+        if (lowerBound < upperBound) {
+            this.scanTokenRange(lowerBound + 1, upperBound, afterKey, visitor);
+        } else if (afterKey == null || decodeToken(afterKey) > lowerBound) {
+            // The range wraps, so (lowerBound, MAX] is sent before [MIN, upperBound]
+            if (lowerBound < Long.MAX_VALUE) {
+                this.scanTokenRange(lowerBound + 1, Long.MAX_VALUE, afterKey, visitor);
             }
-            iter.next();
+            this.scanTokenRange(Long.MIN_VALUE, upperBound, null, visitor);
+        } else {
+            this.scanTokenRange(Long.MIN_VALUE, upperBound, afterKey, visitor);
         }
     }
 
+    // Opens a cursor over the tokens [from, to], starting after the given key if there is one
+    public ScanCursor openScan(long from, long to, byte[] after) {
+        return new ScanCursor(from, to, after);
+    }
+
+    public void deleteAll() {
+        this.deleteTokenRange(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
     public void lowerBoundDelete(long lowerBound) {
-        final RocksIterator iter = this.db.newIterator();
-        iter.seekToFirst();
+        if (lowerBound < Long.MAX_VALUE) {
+            this.deleteTokenRange(lowerBound + 1, Long.MAX_VALUE);
+        }
+    }
+
+    public void upperBoundDelete(long upperBound) {
+        if (upperBound > Long.MIN_VALUE) {
+            this.deleteTokenRange(Long.MIN_VALUE, upperBound - 1);
+        }
+    }
+
+    // Writes the value under a new version from this node's clock
+    public byte[] post(String key, byte[] value) {
+        return this.postVersioned(key, Versioned.encode(this.nextVersion(), value)) ? value : null;
+    }
 
-        ArrayList<byte[]> keys = new ArrayList<>();
-        while (iter.isValid()) {
-            byte[] key = iter.key();
-            byte[] digest = this.md.digest(key);
-            if (ByteBuffer.wrap(digest).getLong() > lowerBound) {
-                keys.add(key);
+    // Writes a value encoded by Versioned unless the stored copy is newer; returns false on errors only
+    public boolean postVersioned(String key, byte[] stored) {
+        return this.submit(List.of(key.getBytes(StandardCharsets.UTF_8)), Collections.singletonList(stored)) != null;
+    }
 
+    // Writes all the pairs in one atomic WriteBatch, skipping keys whose stored copy is newer. Values
+    // are encoded by Versioned.
+    public boolean postBatch(List<byte[]> keys, List<byte[]> values) {
+        return this.submit(keys, values) != null;
+    }
+
+    // Writes a tombstone made by Versioned.tombstone unless the stored copy is newer. Returns the live
+    // value it deleted, or null if there was none, the stored copy won, or the write failed.
+    public byte[] delete(String key, byte[] tombstone) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> replaced = this.submit(List.of(keyBytes), List.of(tombstone));
+        if (replaced == null) {
+            return null;
+        }
+        byte[] old = replaced.get(0);
+        return Versioned.live(old, System.currentTimeMillis()) && Versioned.newer(keyBytes, tombstone, old)
+                ? Versioned.value(old)
+                : null;
+    }
+
+    // Commits the writes. With keyval.fsync=batch they are queued for the next group commit, and the
+    // caller commits the queue itself if no other caller is. A caller that commits hands over to the
+    // first write still queued, like LevelDB's writer queue, so writes that arrived during a commit go
+    // out together in the next one. Values, tombstones included, are encoded by Versioned. Returns
+    // what each write replaced, or null if the commit failed.
+    List<byte[]> submit(List<byte[]> keys, List<byte[]> values) {
+        List<byte[]> storageKeys = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            storageKeys.add(this.storageKey(keys.get(i)));
+            if (values.get(i) != null) {
+                this.clock.observe(Versioned.version(values.get(i)));
             }
-            iter.next();
         }
-        for (byte[] key : keys) {
+        PendingWrite write = new PendingWrite(keys, storageKeys, values, Thread.currentThread(), new CompletableFuture<>());
+        if (Config.FSYNC != Config.Fsync.BATCH) {
+            // Without a shared fsync there is little to coalesce: RocksDB already merges the WAL appends
+            // of concurrent writers, and the queue handoff costs more than it saves
+            this.commit(List.of(write));
+            return write.replaced().join();
+        }
+        this.writeQueue.add(write);
+        while (!write.replaced().isDone()) {
+            if (!this.commitLock.tryLock()) {
+                // Woken once a commit includes this write, or to commit the queue after the current one
+                LockSupport.park(this);
+                continue;
+            }
             try {
-                this.db.delete(key);
-            } catch (RocksDBException e) {
-                e.printStackTrace();
+                if (!write.replaced().isDone()) {
+                    this.commitQueued();
+                }
+            } finally {
+                this.commitLock.unlock();
+            }
+            PendingWrite next = this.writeQueue.peek();
+            if (next != null) {
+                LockSupport.unpark(next.writer());
             }
         }
+        return write.replaced().join();
     }
 
-    public void upperBoundDelete(long upperBound) {
-        final RocksIterator iter = this.db.newIterator();
-        iter.seekToFirst();
+    // Waits keyval.groupCommitWaitMicros for more writes to queue up, then commits up to
+    // keyval.groupCommitMaxWrites of them; callers hold the commit lock
+    private void commitQueued() {
+        if (Config.GROUP_COMMIT_WAIT_MICROS > 0) {
+            LockSupport.parkNanos(Config.GROUP_COMMIT_WAIT_MICROS * 1000L);
+        }
+        int maxWrites = Math.max(1, Config.GROUP_COMMIT_MAX_WRITES);
+        List<PendingWrite> group = new ArrayList<>();
+        int writes = 0;
+        PendingWrite next;
+        while (writes < maxWrites && (next = this.writeQueue.poll()) != null) {
+            group.add(next);
+            writes += next.keys().size();
+        }
+        this.groupCommitWrites.record(writes);
+        try {
+            this.commit(group);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            group.forEach(write -> write.replaced().complete(null));
+        }
+        group.forEach(write -> LockSupport.unpark(write.writer()));
+    }
 
-        ArrayList<byte[]> keys = new ArrayList<>();
-        while (iter.isValid()) {
-            byte[] key = iter.key();
-            byte[] digest = this.md.digest(key);
-            if (ByteBuffer.wrap(digest).getLong() < upperBound) {
-                keys.add(key);
+    // A lone write, the common case when writers are not contending, goes straight to RocksDB without
+    // the batch bookkeeping
+    private void commitOne(PendingWrite write) {
+        byte[] storageKey = write.storageKeys().get(0);
+        byte[] value = write.values().get(0);
+        List<ReentrantLock> held = this.lockAll(write.storageKeys());
+        try {
+            byte[] old = this.db.get(this.dataHandle, storageKey);
+            if (purgeable(value, System.currentTimeMillis()) && Versioned.newer(write.keys().get(0), value, old)) {
+                // A copy that was already due to be purged when it arrived is not stored, but still
+                // replaces older ones
+                value = null;
             }
-            iter.next();
-        }
-        for (byte[] key : keys) {
-            try {
-                this.db.delete(key);
-            } catch (RocksDBException e) {
-                e.printStackTrace();
+            boolean applied = value == null ? old != null : Versioned.newer(write.keys().get(0), value, old);
+            if (applied && expiresAt(old) == 0 && expiresAt(value) == 0) {
+                if (value == null) {
+                    this.db.delete(this.dataHandle, this.writeOptions, storageKey);
+                } else {
+                    this.db.put(this.dataHandle, this.writeOptions, storageKey, value);
+                }
+                this.updateSegment(storageKey, old, value);
+            } else if (applied) {
+                // The copy's expiry index entry moves in the same batch
+                try (final WriteBatch batch = new WriteBatch()) {
+                    if (value == null) {
+                        batch.delete(this.dataHandle, storageKey);
+                    } else {
+                        batch.put(this.dataHandle, storageKey, value);
+                    }
+                    this.indexExpiry(batch, storageKey, old, value);
+                    this.db.write(this.writeOptions, batch);
+                }
+                this.updateSegment(storageKey, old, value);
             }
+            write.replaced().complete(Collections.singletonList(old));
+        } catch (RocksDBException e) {
+            System.err.printf("Unable to commit a write to %s\n", new String(write.keys().get(0), StandardCharsets.UTF_8));
+            e.printStackTrace();
+            write.replaced().complete(null);
+        } finally {
+            held.forEach(ReentrantLock::unlock);
         }
     }
 
-    public byte[] post(String key, String val) {
-        try {
-            final byte[] valBytes = val.getBytes();
-            this.db.put(key.getBytes(), valBytes);
-            return valBytes;
+    // Applies a group of queued writes in one WriteBatch, in queue order, and folds them into the
+    // segment hashes. Puts are skipped when the stored copy is newer, and puts of dead copies already
+    // past their grace period delete the stored copy instead.
+    private void commit(List<PendingWrite> group) {
+        if (group.size() == 1 && group.get(0).keys().size() == 1) {
+            this.commitOne(group.get(0));
+            return;
+        }
+        List<byte[]> storageKeys = new ArrayList<>();
+        for (PendingWrite write : group) {
+            storageKeys.addAll(write.storageKeys());
+        }
+        List<ReentrantLock> held = this.lockAll(storageKeys);
+        try (final WriteBatch batch = new WriteBatch()) {
+            List<byte[]> previous = this.db.multiGetAsList(Collections.nCopies(storageKeys.size(), this.dataHandle), storageKeys);
+            // A key may appear more than once, in which case each write replaces the one before it
+            Map<byte[], byte[]> current = new TreeMap<>(Arrays::compare);
+            for (int i = 0; i < storageKeys.size(); i++) {
+                current.putIfAbsent(storageKeys.get(i), previous.get(i));
+            }
+            // Segment updates are applied only once the batch is written
+            long now = System.currentTimeMillis();
+            List<byte[]> applied = new ArrayList<>();
+            List<byte[]> oldValues = new ArrayList<>();
+            List<byte[]> newValues = new ArrayList<>();
+            List<List<byte[]>> replaced = new ArrayList<>(group.size());
+            for (PendingWrite write : group) {
+                List<byte[]> writeReplaced = new ArrayList<>(write.keys().size());
+                for (int i = 0; i < write.keys().size(); i++) {
+                    byte[] storageKey = write.storageKeys().get(i);
+                    byte[] value = write.values().get(i);
+                    byte[] old = current.get(storageKey);
+                    writeReplaced.add(old);
+                    if (value != null && !Versioned.newer(write.keys().get(i), value, old)) {
+                        continue;
+                    }
+                    if (purgeable(value, now)) {
+                        value = null;
+                    }
+                    if (value == null) {
+                        if (old == null) {
+                            continue;
+                        }
+                        batch.delete(this.dataHandle, storageKey);
+                    } else {
+                        batch.put(this.dataHandle, storageKey, value);
+                    }
+                    this.indexExpiry(batch, storageKey, old, value);
+                    current.put(storageKey, value);
+                    applied.add(storageKey);
+                    oldValues.add(old);
+                    newValues.add(value);
+                }
+                replaced.add(writeReplaced);
+            }
+            if (batch.count() > 0) {
+                this.db.write(this.writeOptions, batch);
+            }
+            for (int i = 0; i < applied.size(); i++) {
+                this.updateSegment(applied.get(i), oldValues.get(i), newValues.get(i));
+            }
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).replaced().complete(replaced.get(i));
+            }
         } catch (RocksDBException e) {
-            System.err.printf("Unable to post (%s,%s)\n", key, val);
+            System.err.printf("Unable to commit %d writes\n", storageKeys.size());
             e.printStackTrace();
-            return null;
+            group.forEach(write -> write.replaced().complete(null));
+        } finally {
+            held.forEach(ReentrantLock::unlock);
         }
     }
 
-    public byte[] delete(String key) {
-        try {
-            final byte[] val = this.db.get(key.getBytes());
-            if (val == null) {
-                return null;
+    // Whether a copy is dead and past keyval.tombstoneGraceMinutes, so it no longer needs keeping
+    private static boolean purgeable(byte[] stored, long now) {
+        if (stored == null) {
+            return false;
+        }
+        long purgeAt = Versioned.purgeAt(stored, Config.TOMBSTONE_GRACE_MS);
+        return purgeAt != 0 && purgeAt <= now;
+    }
+
+    // Purges dead copies, tombstones and expired values, once their grace period is over. Every
+    // replica sees a copy die at the same moment and purges it on its own, so no delete crosses the
+    // network. The sweep reads the expiry index up to the copies that died a grace period ago and
+    // stops there, deleting them a batch at a time under their lock stripes, each rechecked first in
+    // case it was written again since it was indexed.
+    void sweepExpired() {
+        long now = System.currentTimeMillis();
+        long removed = 0;
+        List<byte[]> due = new ArrayList<>();
+        try (final ReadOptions readOptions = new ReadOptions().setFillCache(false);
+             final RocksIterator iter = this.db.newIterator(this.expiryHandle, readOptions)) {
+            iter.seekToFirst();
+            while (iter.isValid()) {
+                byte[] indexKey = iter.key();
+                if (ByteBuffer.wrap(indexKey, 0, EXPIRES_AT_LENGTH).getLong() + Config.TOMBSTONE_GRACE_MS > now) {
+                    break;
+                }
+                due.add(indexKey);
+                if (due.size() == SWEEP_BATCH_SIZE) {
+                    removed += this.deleteExpired(due);
+                    due.clear();
+                }
+                iter.next();
             }
-            this.db.delete(key.getBytes());
-            return val;
+            removed += this.deleteExpired(due);
+        } catch (RuntimeException e) {
+            // Keeps the schedule going; the next sweep starts over
+            e.printStackTrace();
+        }
+        this.metrics.counter("keyval_ttl_expired_total", "Tombstones and expired values purged by the sweep").add(removed);
+    }
+
+    // Purges the copies named by the expiry index entries, and drops the entries, including those of
+    // copies that were overwritten or deleted since they were indexed
+    private int deleteExpired(List<byte[]> indexKeys) {
+        if (indexKeys.isEmpty()) {
+            return 0;
+        }
+        List<byte[]> storageKeys = new ArrayList<>(indexKeys.size());
+        for (byte[] indexKey : indexKeys) {
+            storageKeys.add(Arrays.copyOfRange(indexKey, EXPIRES_AT_LENGTH, indexKey.length));
+        }
+        List<ReentrantLock> held = this.lockAll(storageKeys);
+        try (final WriteBatch batch = new WriteBatch()) {
+            List<byte[]> current = this.db.multiGetAsList(Collections.nCopies(storageKeys.size(), this.dataHandle), storageKeys);
+            List<Integer> deleted = new ArrayList<>();
+            for (int i = 0; i < storageKeys.size(); i++) {
+                // An entry that still matches the stored copy is due, so the copy is purgeable
+                byte[] stored = current.get(i);
+                batch.singleDelete(this.expiryHandle, indexKeys.get(i));
+                if (expiresAt(stored) == ByteBuffer.wrap(indexKeys.get(i), 0, EXPIRES_AT_LENGTH).getLong()) {
+                    batch.delete(this.dataHandle, storageKeys.get(i));
+                    deleted.add(i);
+                }
+            }
+            if (batch.count() > 0) {
+                this.db.write(this.writeOptions, batch);
+            }
+            for (int i : deleted) {
+                this.updateSegment(storageKeys.get(i), current.get(i), null);
+            }
+            return deleted.size();
         } catch (RocksDBException e) {
-            System.err.printf("Unable to delete value for key %s\n", key);
+            System.err.printf("Unable to purge %d dead keys\n", storageKeys.size());
             e.printStackTrace();
-            return null;
+            return 0;
+        } finally {
+            held.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    // Whether the token lies in the ring range (lowerBound, upperBound], wrapping like boundGet
+    private static boolean inRange(long token, long lowerBound, long upperBound) {
+        return lowerBound < upperBound
+                ? token > lowerBound && token <= upperBound
+                : token > lowerBound || token <= upperBound;
+    }
+
+    // Writes the keys in the ring range (lowerBound, upperBound] to an SST file, from one iterator so
+    // the file is a consistent snapshot of the range. Returns the number of keys written; an empty
+    // range writes no file, since RocksDB cannot build an empty SST.
+    public long exportRange(long lowerBound, long upperBound, Path file) throws RocksDBException {
+        long count = 0;
+        try (final EnvOptions envOptions = new EnvOptions();
+             final Options options = this.profile.sstFileOptions();
+             final SstFileWriter writer = new SstFileWriter(envOptions, options);
+             final RocksIterator iter = this.db.newIterator(this.dataHandle)) {
+            // SST files must be written in key order, so a range that wraps writes its keys from the
+            // start of the ring before those up to the end of the ring
+            long[][] tokenRanges = lowerBound < upperBound
+                    ? new long[][] {{lowerBound + 1, upperBound}}
+                    : new long[][] {{Long.MIN_VALUE, upperBound}, {lowerBound + 1, Long.MAX_VALUE}};
+            for (long[] tokenRange : tokenRanges) {
+                if (tokenRange[0] > tokenRange[1]) {
+                    continue;
+                }
+                iter.seek(encodeToken(tokenRange[0]));
+                while (iter.isValid() && decodeToken(iter.key()) <= tokenRange[1]) {
+                    if (count++ == 0) {
+                        writer.open(file.toString());
+                    }
+                    writer.put(iter.key(), iter.value());
+                    iter.next();
+                }
+            }
+            if (count > 0) {
+                writer.finish();
+            }
+        }
+        return count;
+    }
+
+    // Indexes every copy in an SST file that can die
+    private void indexExpiring(SstFileReader reader, ReadOptions readOptions) throws RocksDBException {
+        try (final SstFileReaderIterator iter = reader.newIterator(readOptions);
+             final WriteBatch batch = new WriteBatch()) {
+            iter.seekToFirst();
+            while (iter.isValid()) {
+                long expiresAt = Versioned.expiresAt(iter.value());
+                if (expiresAt != 0) {
+                    batch.put(this.expiryHandle, expiryKey(expiresAt, iter.key()), new byte[0]);
+                    if (batch.count() == SWEEP_BATCH_SIZE) {
+                        this.db.write(this.writeOptions, batch);
+                        batch.clear();
+                    }
+                }
+                iter.next();
+            }
+            if (batch.count() > 0) {
+                this.db.write(this.writeOptions, batch);
+            }
+        }
+    }
+
+    // Loads an SST file written by exportRange on another node for the ring range (lowerBound,
+    // upperBound]. The file is ingested as a whole, skipping the write path, and takes over the keys it
+    // holds, so copies this node already had that are newer than the file's are written back on top.
+    // Every lock stripe is held from the local scan on, since writes to the range in the meantime could
+    // otherwise be overwritten by the file. The segment hashes are updated from a pass over the file,
+    // made before taking the locks, instead of rescanning the range after ingestion.
+    public boolean ingestRange(Path file, long lowerBound, long upperBound) {
+        long[] fileHashes = new long[MerkleTree.SEGMENTS];
+        try (final Options options = new Options();
+             final SstFileReader reader = new SstFileReader(options);
+             final ReadOptions readOptions = new ReadOptions()) {
+            reader.open(file.toString());
+            reader.verifyChecksum();
+            try (final SstFileReaderIterator iter = reader.newIterator(readOptions)) {
+                iter.seekToFirst();
+                while (iter.isValid()) {
+                    long token = decodeToken(iter.key());
+                    if (!inRange(token, lowerBound, upperBound)) {
+                        System.err.printf("Rejecting snapshot with a key outside (%d, %d]\n", lowerBound, upperBound);
+                        return false;
+                    }
+                    fileHashes[MerkleTree.segment(token)] ^= MerkleTree.entryHash(userKey(iter.key()), iter.value());
+                    iter.next();
+                }
+            }
+            // The file's copies that can die are indexed up front; the entries of those that lose to
+            // a local copy, or of ingestion that fails, are dropped by the sweep
+            this.indexExpiring(reader, readOptions);
+
+            for (ReentrantLock lock : this.locks) {
+                lock.lock();
+            }
+            try (final SstFileReaderIterator lookup = reader.newIterator(readOptions);
+                 final IngestExternalFileOptions ingestOptions = new IngestExternalFileOptions().setMoveFiles(true);
+                 final WriteBatch batch = new WriteBatch()) {
+                // The copies this node has in the range, and the file's copies of the same keys
+                List<byte[]> localKeys = new ArrayList<>();
+                List<byte[]> localValues = new ArrayList<>();
+                List<byte[]> fileValues = new ArrayList<>();
+                this.scanRange(lowerBound, upperBound, null, (key, stored) -> {
+                    byte[] storageKey = this.storageKey(key);
+                    lookup.seek(storageKey);
+                    localKeys.add(storageKey);
+                    localValues.add(stored);
+                    fileValues.add(lookup.isValid() && Arrays.equals(lookup.key(), storageKey) ? lookup.value() : null);
+                });
+                this.db.ingestExternalFile(this.dataHandle, List.of(file.toString()), ingestOptions);
+                if (this.cache != null) {
+                    this.cache.clear();
+                }
+                // The segment hashes now count both the local copies and the file's; where a key is in
+                // both, the losing copy is taken out again
+                for (int segment = 0; segment < fileHashes.length; segment++) {
+                    if (fileHashes[segment] != 0) {
+                        this.segmentHashes.accumulateAndGet(segment, fileHashes[segment], (a, b) -> a ^ b);
+                    }
+                }
+                for (int i = 0; i < localKeys.size(); i++) {
+                    byte[] storageKey = localKeys.get(i);
+                    byte[] local = localValues.get(i);
+                    byte[] fromFile = fileValues.get(i);
+                    if (fromFile == null) {
+                        continue;
+                    }
+                    if (Versioned.newer(userKey(storageKey), local, fromFile)) {
+                        batch.put(this.dataHandle, storageKey, local);
+                        this.updateSegment(storageKey, fromFile, null);
+                    } else {
+                        this.updateSegment(storageKey, local, null);
+                    }
+                }
+                if (batch.count() > 0) {
+                    this.db.write(this.writeOptions, batch);
+                }
+                return true;
+            } finally {
+                for (ReentrantLock lock : this.locks) {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException | RocksDBException e) {
+            System.err.printf("Unable to ingest snapshot of (%d, %d]\n", lowerBound, upperBound);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Builds the hash tree of the ring range (lowerBound, upperBound] from the segment hashes, scanning
+    // only the leaves at either end that cover part of a segment
+    public MerkleTree merkleTree(long lowerBound, long upperBound) {
+        long[] leaves = new long[MerkleTree.leafCount(lowerBound, upperBound)];
+        for (int leaf = 0; leaf < leaves.length; leaf++) {
+            if (MerkleTree.wholeSegment(lowerBound, upperBound, leaf)) {
+                leaves[leaf] = this.segmentHashes.get(MerkleTree.leafSegment(lowerBound, leaf));
+                continue;
+            }
+            long[] hash = new long[1];
+            try {
+                this.scanTokenRange(MerkleTree.leafFirst(lowerBound, leaf),
+                        MerkleTree.leafLast(lowerBound, upperBound, leaf), null,
+                        (key, value) -> hash[0] ^= MerkleTree.entryHash(key, value));
+            } catch (IOException e) {
+                // The visitor does no I/O
+            }
+            leaves[leaf] = hash[0];
         }
+        return new MerkleTree(lowerBound, upperBound, leaves);
     }
 }
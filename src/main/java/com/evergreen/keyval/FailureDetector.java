@@ -0,0 +1,115 @@
+package com.evergreen.keyval;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al.). Instead of a fixed timeout, it keeps a window of
+ * heartbeat inter-arrival times per peer and reports phi, the -log10 probability that a heartbeat
+ * would still be on its way after the time that has passed since the last one, assuming normally
+ * distributed intervals. Phi rises smoothly while a peer is silent, so a threshold of 8 means about
+ * one false suspicion in 10^8, whatever the peer's usual heartbeat rhythm is.
+ *
+ * A peer is tracked from the first time it is seen, seeded with an estimated interval, so a seed node
+ * that never sends a single heartbeat still becomes suspect.
+ */
+public class FailureDetector {
+
+    private static final int WINDOW_SIZE = 1000;
+    private static final double MIN_STD_DEVIATION_MS = 200;
+
+    private final long firstHeartbeatEstimateMs;
+    private final ConcurrentHashMap<String, ArrivalWindow> windows = new ConcurrentHashMap<>();
+
+    public FailureDetector(long firstHeartbeatEstimateMs) {
+        this.firstHeartbeatEstimateMs = firstHeartbeatEstimateMs;
+    }
+
+    // Starts tracking the peer if it is not tracked yet, as if a heartbeat had just arrived
+    public void track(String address) {
+        this.windows.computeIfAbsent(address, ignored -> new ArrivalWindow(System.currentTimeMillis()));
+    }
+
+    public void heartbeat(String address) {
+        long now = System.currentTimeMillis();
+        ArrivalWindow window = this.windows.putIfAbsent(address, new ArrivalWindow(now));
+        if (window != null) {
+            window.add(now);
+        }
+    }
+
+    // Suspicion level of the peer, or 0 if it is not tracked
+    public double phi(String address) {
+        ArrivalWindow window = this.windows.get(address);
+        return window == null ? 0 : window.phi(System.currentTimeMillis());
+    }
+
+    public void forget(String address) {
+        this.windows.remove(address);
+    }
+
+    // Stops tracking every peer that is not in the given collection
+    public void retain(Collection<String> addresses) {
+        this.windows.keySet().retainAll(addresses);
+    }
+
+    // {address: {phi, meanIntervalMs, lastHeartbeatMs}} for every tracked peer
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> stats = new HashMap<>();
+        this.windows.forEach((address, window) -> stats.put(address, window.stats(now)));
+        return stats;
+    }
+
+    private class ArrivalWindow {
+        private final ArrayDeque<Long> intervals = new ArrayDeque<>();
+        private double sum;
+        private double sumOfSquares;
+        private long lastArrival;
+
+        ArrivalWindow(long now) {
+            // Two samples a quarter apart around the estimate give the window a mean and a spread
+            long estimate = FailureDetector.this.firstHeartbeatEstimateMs;
+            this.record(estimate - estimate / 4);
+            this.record(estimate + estimate / 4);
+            this.lastArrival = now;
+        }
+
+        private void record(long interval) {
+            if (this.intervals.size() == WINDOW_SIZE) {
+                long oldest = this.intervals.removeFirst();
+                this.sum -= oldest;
+                this.sumOfSquares -= (double) oldest * oldest;
+            }
+            this.intervals.addLast(interval);
+            this.sum += interval;
+            this.sumOfSquares += (double) interval * interval;
+        }
+
+        synchronized void add(long now) {
+            this.record(now - this.lastArrival);
+            this.lastArrival = now;
+        }
+
+        synchronized double phi(long now) {
+            double mean = this.sum / this.intervals.size();
+            double variance = this.sumOfSquares / this.intervals.size() - mean * mean;
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEVIATION_MS);
+            // Logistic approximation of the normal CDF, as used by Akka
+            double y = (now - this.lastArrival - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            double phi = now - this.lastArrival > mean ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+            return Double.isInfinite(phi) ? Double.MAX_VALUE : phi;
+        }
+
+        synchronized Map<String, Object> stats(long now) {
+            return Map.of(
+                    "phi", this.phi(now),
+                    "meanIntervalMs", this.sum / this.intervals.size(),
+                    "lastHeartbeatMs", now - this.lastArrival);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.evergreen.keyval;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Wire format of {@code GET /keys/stream}: a sequence of frames
+ * {@code [int keyLength][key][int valueLength][value]} ending with a key length of -1, with values
+ * encoded by {@link Versioned} so they keep their versions on the receiving node. A stream that
+ * ends without the terminator was cut off and can be resumed after the last key the receiver applied.
+ */
+public class HandoffStream {
+
+    private static final int END_OF_STREAM = -1;
+
+    public static void writeEntry(DataOutputStream out, byte[] key, byte[] value) throws IOException {
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeInt(END_OF_STREAM);
+        out.flush();
+    }
+
+    // Returns {key, value}, or null once the terminator is reached
+    public static byte[][] readEntry(DataInputStream in) throws IOException {
+        int keyLength = in.readInt();
+        if (keyLength == END_OF_STREAM) {
+            return null;
+        }
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return new byte[][] {key, value};
+    }
+}
@@ -0,0 +1,207 @@
+package com.evergreen.keyval;
+
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Durable log of writes a coordinator accepted on behalf of a replica that was down or too slow,
+ * kept in its own RocksDB column family until they can be handed off. Hints are keyed by
+ * {@code [target address][0][key]}, so a newer write to the same key replaces the older hint, and
+ * stored as {@code [long createdMillis][byte op][value]}, with the value encoded by {@link Versioned}
+ * so a replayed hint never replaces a newer write. Deletes are hinted as PUTs of their tombstone; a
+ * DELETE hint from before tombstones has no value and is replayed as a tombstone versioned at its
+ * createdMillis, the earliest the delete could have been made.
+ */
+public class HintLog {
+
+    public record Hint(String target, byte[] key, byte op, byte[] value, long createdMillis, byte[] stored) {}
+
+    private final RocksDB db;
+    private final ColumnFamilyHandle handle;
+    // Pending hints per target, and when each target's backlog was last empty
+    private final ConcurrentHashMap<String, AtomicLong> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> pendingSince = new ConcurrentHashMap<>();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Serializes stores and removals, which compare against what is on disk
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public HintLog(RocksDB db, ColumnFamilyHandle handle) {
+        this.db = db;
+        this.handle = handle;
+        try (final RocksIterator iter = this.db.newIterator(this.handle)) {
+            iter.seekToFirst();
+            while (iter.isValid()) {
+                Hint hint = decode(iter.key(), iter.value());
+                this.pending.computeIfAbsent(hint.target(), target -> new AtomicLong()).incrementAndGet();
+                this.pendingSince.merge(hint.target(), hint.createdMillis(), Math::min);
+                iter.next();
+            }
+        }
+    }
+
+    private static byte[] hintKey(String target, byte[] key) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(targetBytes.length + 1 + key.length)
+                .put(targetBytes)
+                .put((byte) 0)
+                .put(key)
+                .array();
+    }
+
+    private static Hint decode(byte[] hintKey, byte[] stored) {
+        int separator = 0;
+        while (hintKey[separator] != 0) {
+            separator++;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(stored);
+        long createdMillis = buffer.getLong();
+        byte op = buffer.get();
+        byte[] value = new byte[buffer.remaining()];
+        buffer.get(value);
+        return new Hint(new String(hintKey, 0, separator, StandardCharsets.UTF_8),
+                Arrays.copyOfRange(hintKey, separator + 1, hintKey.length), op, value, createdMillis, stored);
+    }
+
+    // Stores one hint per key for the target; values may be null for deletes. Returns the stored
+    // hints, or null if they could not be written.
+    public List<Hint> store(String target, byte op, List<byte[]> keys, List<byte[]> values) {
+        this.lock.lock();
+        try {
+            return this.storeLocked(target, op, keys, values);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private List<Hint> storeLocked(String target, byte op, List<byte[]> keys, List<byte[]> values) {
+        long now = System.currentTimeMillis();
+        List<Hint> hints = new ArrayList<>(keys.size());
+        int added = 0;
+        try (final WriteBatch batch = new WriteBatch();
+             final WriteOptions writeOptions = new WriteOptions()) {
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] value = values == null || values.get(i) == null ? new byte[0] : values.get(i);
+                byte[] stored = ByteBuffer.allocate(9 + value.length).putLong(now).put(op).put(value).array();
+                byte[] hintKey = hintKey(target, keys.get(i));
+                if (this.db.get(this.handle, hintKey) == null) {
+                    added++;
+                }
+                batch.put(this.handle, hintKey, stored);
+                hints.add(new Hint(target, keys.get(i), op, value, now, stored));
+            }
+            this.db.write(writeOptions, batch);
+        } catch (RocksDBException e) {
+            System.err.printf("Unable to store %d hints for %s\n", keys.size(), target);
+            e.printStackTrace();
+            return null;
+        }
+        if (this.pending.computeIfAbsent(target, t -> new AtomicLong()).getAndAdd(added) == 0 && added > 0) {
+            this.pendingSince.put(target, now);
+        }
+        this.written.addAndGet(keys.size());
+        return hints;
+    }
+
+    // Removes hints that are no longer needed, skipping any that a newer write has since replaced
+    private int remove(List<Hint> hints) {
+        int removed = 0;
+        this.lock.lock();
+        try (final WriteBatch batch = new WriteBatch();
+             final WriteOptions writeOptions = new WriteOptions()) {
+            for (Hint hint : hints) {
+                byte[] hintKey = hintKey(hint.target(), hint.key());
+                if (Arrays.equals(this.db.get(this.handle, hintKey), hint.stored())) {
+                    batch.delete(this.handle, hintKey);
+                    removed++;
+                    AtomicLong count = this.pending.get(hint.target());
+                    if (count != null && count.decrementAndGet() <= 0) {
+                        this.pending.remove(hint.target());
+                        this.pendingSince.remove(hint.target());
+                    }
+                }
+            }
+            this.db.write(writeOptions, batch);
+        } catch (RocksDBException e) {
+            System.err.printf("Unable to remove %d hints\n", hints.size());
+            e.printStackTrace();
+        } finally {
+            this.lock.unlock();
+        }
+        return removed;
+    }
+
+    // The replica acknowledged the write after all, so its hints are redundant
+    public void discard(List<Hint> hints) {
+        this.remove(hints);
+    }
+
+    public int delivered(List<Hint> hints) {
+        int removed = this.remove(hints);
+        this.replayed.addAndGet(removed);
+        return removed;
+    }
+
+    public void expired(List<Hint> hints) {
+        this.dropped.addAndGet(this.remove(hints));
+    }
+
+    public Set<String> targets() {
+        return this.pending.keySet();
+    }
+
+    // Reads up to limit of the target's hints, in key order
+    public List<Hint> read(String target, int limit) {
+        byte[] prefix = hintKey(target, new byte[0]);
+        List<Hint> hints = new ArrayList<>();
+        try (final RocksIterator iter = this.db.newIterator(this.handle)) {
+            iter.seek(prefix);
+            while (iter.isValid() && hints.size() < limit) {
+                byte[] hintKey = iter.key();
+                if (hintKey.length < prefix.length
+                        || !Arrays.equals(hintKey, 0, prefix.length, prefix, 0, prefix.length)) {
+                    break;
+                }
+                hints.add(decode(hintKey, iter.value()));
+                iter.next();
+            }
+        }
+        return hints;
+    }
+
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> targets = new HashMap<>();
+        long total = 0;
+        for (Map.Entry<String, AtomicLong> entry : this.pending.entrySet()) {
+            long count = entry.getValue().get();
+            total += count;
+            targets.put(entry.getKey(), Map.of(
+                    "pending", count,
+                    "replayLagMs", now - this.pendingSince.getOrDefault(entry.getKey(), now)));
+        }
+        return Map.of(
+                "pending", total,
+                "written", this.written.get(),
+                "replayed", this.replayed.get(),
+                "dropped", this.dropped.get(),
+                "targets", targets);
+    }
+}
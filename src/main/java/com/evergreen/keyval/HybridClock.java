@@ -0,0 +1,30 @@
+package com.evergreen.keyval;
+
+/**
+ * Hybrid logical clock used to version writes. A timestamp is the wall-clock time in milliseconds in
+ * the top 48 bits and a logical counter in the low 16 bits. Timestamps from one node strictly increase
+ * even if the wall clock steps back, and a node that has seen a version from a peer whose clock runs
+ * ahead only issues versions above it, so a later write to a key always gets the higher version unless
+ * the clocks of its coordinators are further apart than the time between the writes.
+ */
+public class HybridClock {
+
+    private static final int LOGICAL_BITS = 16;
+
+    private long last;
+
+    public synchronized long now() {
+        this.last = Math.max(this.last + 1, System.currentTimeMillis() << LOGICAL_BITS);
+        return this.last;
+    }
+
+    // The lowest version a clock could have issued at the given wall-clock time
+    public static long at(long millis) {
+        return millis << LOGICAL_BITS;
+    }
+
+    // Moves the clock past a version received from another node
+    public synchronized void observe(long version) {
+        this.last = Math.max(this.last, version);
+    }
+}
@@ -0,0 +1,37 @@
+package com.evergreen.keyval;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Tokens are the first 64 bits, big-endian, of the key's MD5 digest, which is how every node placed
+ * keys before partitioners were configurable. Kept for data and clusters created then.
+ */
+public class Md5Partitioner implements Partitioner {
+
+    public static final Md5Partitioner INSTANCE = new Md5Partitioner();
+
+    // MessageDigest is not thread-safe, so every thread hashes with its own
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No algorithm MD5", e);
+        }
+    });
+
+    @Override
+    public long token(byte[] key) {
+        byte[] digest = MD5.get().digest(key);
+        long token = 0;
+        for (int i = 0; i < 8; i++) {
+            token = (token << 8) | (digest[i] & 0xff);
+        }
+        return token;
+    }
+
+    @Override
+    public String name() {
+        return Config.PartitionerType.MD5.name();
+    }
+}
@@ -0,0 +1,168 @@
+package com.evergreen.keyval;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Versioned cluster membership exchanged by gossip. Every member is tracked by node id with a
+ * generation, the time its process started, a version that is bumped on every change to its entry,
+ * and a heartbeat that the member bumps every gossip round. Two replicas of the table are reconciled
+ * by comparing {@code [generation, version, heartbeat]} digests and shipping only the entries one
+ * side has newer; a heartbeat that advances is how the {@link FailureDetector} hears from a member
+ * it does not gossip with directly. Removed members are kept as tombstones
+ * so that a removal spreads instead of being undone by a peer that has not heard of it yet. A
+ * member that finds itself marked removed while it is still running refutes the removal by
+ * re-announcing itself with a higher version.
+ *
+ * Not thread-safe; {@link ClusterMember} guards it with its membership lock.
+ */
+public class Membership {
+
+    public record Member(String address, long generation, long version, long heartbeat, boolean removed) {
+        boolean newerThan(long generation, long version, long heartbeat) {
+            return newer(this.generation, this.version, this.heartbeat, generation, version, heartbeat);
+        }
+
+        boolean newerThan(Member other) {
+            return this.newerThan(other.generation, other.version, other.heartbeat);
+        }
+    }
+
+    // Orders by generation, then version, then heartbeat, so a heartbeat never outranks a removal
+    private static boolean newer(long generation, long version, long heartbeat,
+                                 long thanGeneration, long thanVersion, long thanHeartbeat) {
+        if (generation != thanGeneration) {
+            return generation > thanGeneration;
+        }
+        if (version != thanVersion) {
+            return version > thanVersion;
+        }
+        return heartbeat > thanHeartbeat;
+    }
+
+    // What a gossip partner answers to a digest: the entries it has newer, and the ids it wants sent back
+    public record Delta(Map<Long, Member> updates, List<Long> wanted) {}
+
+    private final long selfId;
+    private final HashMap<Long, Member> members = new HashMap<>();
+
+    // Seeds start at generation 0, so anything their own processes announce supersedes them
+    public Membership(long selfId, String selfAddress, Map<Long, String> seeds) {
+        this.selfId = selfId;
+        seeds.forEach((id, address) -> this.members.put(id, new Member(address, 0, 0, 0, false)));
+        this.members.put(selfId, new Member(selfAddress, System.currentTimeMillis(), 1, 0, false));
+    }
+
+    // Bumps this node's heartbeat; called once per gossip round
+    public void beat() {
+        Member self = this.members.get(this.selfId);
+        this.members.put(this.selfId, new Member(self.address(), self.generation(), self.version(),
+                self.heartbeat() + 1, false));
+    }
+
+    // {id: [generation, version, heartbeat]} for every member
+    public Map<Long, long[]> digest() {
+        Map<Long, long[]> digest = new HashMap<>();
+        this.members.forEach((id, member) -> digest.put(id,
+                new long[] {member.generation(), member.version(), member.heartbeat()}));
+        return digest;
+    }
+
+    // The entries this table has newer than the digest
+    public Map<Long, Member> newerThan(Map<Long, long[]> digest) {
+        Map<Long, Member> updates = new HashMap<>();
+        this.members.forEach((id, member) -> {
+            long[] theirs = digest.get(id);
+            if (theirs == null || member.newerThan(theirs[0], theirs[1], theirs[2])) {
+                updates.put(id, member);
+            }
+        });
+        return updates;
+    }
+
+    // The ids the digest has newer than this table
+    public List<Long> olderThan(Map<Long, long[]> digest) {
+        List<Long> ids = new ArrayList<>();
+        digest.forEach((id, theirs) -> {
+            Member member = this.members.get(id);
+            if (member == null || newer(theirs[0], theirs[1], theirs[2],
+                    member.generation(), member.version(), member.heartbeat())) {
+                ids.add(id);
+            }
+        });
+        return ids;
+    }
+
+    public Map<Long, Member> entries(Collection<Long> ids) {
+        Map<Long, Member> entries = new HashMap<>();
+        for (Long id : ids) {
+            Member member = this.members.get(id);
+            if (member != null) {
+                entries.put(id, member);
+            }
+        }
+        return entries;
+    }
+
+    public Member get(long id) {
+        return this.members.get(id);
+    }
+
+    public Map<Long, Member> all() {
+        return new HashMap<>(this.members);
+    }
+
+    // Applies the entries that are newer than ours, reports the address of every live member whose
+    // heartbeat advanced, and returns whether the set of live members changed
+    public boolean merge(Map<Long, Member> updates, Consumer<String> heartbeat) {
+        boolean changed = false;
+        for (Map.Entry<Long, Member> update : updates.entrySet()) {
+            long id = update.getKey();
+            Member theirs = update.getValue();
+            Member ours = this.members.get(id);
+            if (ours != null && !theirs.newerThan(ours)) {
+                continue;
+            }
+            if (id == this.selfId) {
+                // Only this node speaks for itself; catch up with the version and refute a removal
+                this.members.put(id, new Member(ours.address(), ours.generation(),
+                        Math.max(ours.version(), theirs.removed() ? theirs.version() + 1 : theirs.version()),
+                        ours.heartbeat(), false));
+                continue;
+            }
+            this.members.put(id, theirs);
+            if (!theirs.removed() && (ours == null || theirs.generation() > ours.generation()
+                    || theirs.heartbeat() > ours.heartbeat())) {
+                heartbeat.accept(theirs.address());
+            }
+            boolean wasLive = ours != null && !ours.removed();
+            changed |= wasLive == theirs.removed() || (wasLive && !ours.address().equals(theirs.address()));
+        }
+        return changed;
+    }
+
+    // Marks the member removed and returns whether it was live
+    public boolean remove(long id) {
+        Member member = this.members.get(id);
+        if (member == null || member.removed() || id == this.selfId) {
+            return false;
+        }
+        this.members.put(id, new Member(member.address(), member.generation(), member.version() + 1,
+                member.heartbeat(), true));
+        return true;
+    }
+
+    public List<String> addresses(boolean removed) {
+        List<String> addresses = new ArrayList<>();
+        for (Member member : this.members.values()) {
+            if (member.removed() == removed) {
+                addresses.add(member.address());
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,144 @@
+package com.evergreen.keyval;
+
+/**
+ * Hash tree over a ring range (lowerBound, upperBound]. The token space is cut into
+ * {@value #SEGMENTS} fixed segments by the top 16 bits of the token, and the range gets one leaf
+ * per segment it touches. A leaf's hash is the XOR of the hashes of its key-value pairs, so
+ * {@link DBClient} keeps every segment's hash up to date on each write and whole leaves never
+ * need a scan; only the two leaves where the range starts or ends part-way through a segment are
+ * hashed by reading their keys. Replicas build trees over the same bounds, so trees have the same
+ * shape and can be compared node by node.
+ *
+ * Nodes are stored heap-style: the root is node 1 and node i has children 2i and 2i + 1. Leaves are
+ * padded with zero hashes up to a power of two.
+ */
+public class MerkleTree {
+
+    public static final int SEGMENTS = 1 << 16;
+    private static final int SEGMENT_SHIFT = 48;
+    private static final long SEGMENT_OFFSET_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final long lowerBound;
+    private final long upperBound;
+    private final int leafCount;
+    private final int firstLeafNode;
+    private final long[] nodes;
+
+    public MerkleTree(long lowerBound, long upperBound, long[] leaves) {
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.leafCount = leaves.length;
+        this.firstLeafNode = Integer.highestOneBit(Math.max(1, leaves.length - 1)) << 1;
+        this.nodes = new long[2 * this.firstLeafNode];
+        System.arraycopy(leaves, 0, this.nodes, this.firstLeafNode, leaves.length);
+        for (int node = this.firstLeafNode - 1; node >= 1; node--) {
+            this.nodes[node] = combine(this.nodes[2 * node], this.nodes[2 * node + 1]);
+        }
+    }
+
+    // Position of a token in unsigned ring order, where segment boundaries fall on the top 16 bits
+    private static long position(long token) {
+        return token ^ Long.MIN_VALUE;
+    }
+
+    public static int segment(long token) {
+        return (int) (position(token) >>> SEGMENT_SHIFT);
+    }
+
+    // First token of the segment
+    public static long segmentStart(int segment) {
+        return position((long) segment << SEGMENT_SHIFT);
+    }
+
+    // Number of leaves of the range (lowerBound, upperBound]; lowerBound == upperBound is the whole ring
+    public static int leafCount(long lowerBound, long upperBound) {
+        long first = position(lowerBound + 1);
+        long last = position(upperBound);
+        if (lowerBound == upperBound) {
+            return (first & SEGMENT_OFFSET_MASK) == 0 ? SEGMENTS : SEGMENTS + 1;
+        }
+        int firstSegment = (int) (first >>> SEGMENT_SHIFT);
+        int lastSegment = (int) (last >>> SEGMENT_SHIFT);
+        if (Long.compareUnsigned(first, last) <= 0) {
+            return lastSegment - firstSegment + 1;
+        }
+        return SEGMENTS - firstSegment + lastSegment + 1;
+    }
+
+    public static int leafSegment(long lowerBound, int leaf) {
+        return (segment(lowerBound + 1) + leaf) & (SEGMENTS - 1);
+    }
+
+    // First token of the leaf, inclusive
+    public static long leafFirst(long lowerBound, int leaf) {
+        return leaf == 0 ? lowerBound + 1 : segmentStart(leafSegment(lowerBound, leaf));
+    }
+
+    // Last token of the leaf, inclusive
+    public static long leafLast(long lowerBound, long upperBound, int leaf) {
+        if (leaf == leafCount(lowerBound, upperBound) - 1) {
+            return upperBound;
+        }
+        return position((((long) leafSegment(lowerBound, leaf) + 1) << SEGMENT_SHIFT) - 1);
+    }
+
+    // Whether the leaf covers its whole segment, so the segment's running hash can stand in for it
+    public static boolean wholeSegment(long lowerBound, long upperBound, int leaf) {
+        return (position(leafFirst(lowerBound, leaf)) & SEGMENT_OFFSET_MASK) == 0
+                && (position(leafLast(lowerBound, upperBound, leaf)) & SEGMENT_OFFSET_MASK) == SEGMENT_OFFSET_MASK;
+    }
+
+    // Order-independent hash contribution of one key-value pair: 64-bit FNV-1a over both, finalized
+    // with the MurmurHash3 mixer so that XORing many of them stays well distributed
+    public static long entryHash(byte[] key, byte[] value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ key.length) * 0x100000001b3L;
+        for (byte b : value) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long combine(long left, long right) {
+        return mix(left * 0x9e3779b97f4a7c15L + right);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public long lowerBound() {
+        return this.lowerBound;
+    }
+
+    public long upperBound() {
+        return this.upperBound;
+    }
+
+    // Number of nodes, including padding; valid node indexes are 1 to nodeCount() - 1
+    public int nodeCount() {
+        return this.nodes.length;
+    }
+
+    public long hash(int node) {
+        return this.nodes[node];
+    }
+
+    public boolean isLeaf(int node) {
+        return node >= this.firstLeafNode;
+    }
+
+    // Index of the leaf at the given node, or -1 for padding
+    public int leaf(int node) {
+        int leaf = node - this.firstLeafNode;
+        return leaf < this.leafCount ? leaf : -1;
+    }
+}
@@ -0,0 +1,257 @@
+package com.evergreen.keyval;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A node's counters, histograms and gauges, written out in the Prometheus text format by
+ * {@code GET /metrics}. Metrics are looked up by name and label values and created on first use, so
+ * call sites need no registration step. Counters are LongAdders, striped across cells so that threads
+ * counting at once do not contend on one cache line. Histograms record into log-linear buckets, like
+ * HdrHistogram's, and are exported as summaries. Gauges, and counters kept elsewhere such as RocksDB's
+ * tickers, are read from a supplier at scrape time.
+ */
+public class Metrics {
+
+    // Quantiles every histogram exports
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private interface Series {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    private record Family(String type, String help, Map<String, Series> series) {}
+
+    public static class Counter implements Series {
+        private final LongAdder count = new LongAdder();
+
+        public void inc() {
+            this.count.increment();
+        }
+
+        public void add(long n) {
+            this.count.add(n);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, this.count.sum());
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative longs: values below 16 each get a bucket, and every power of
+     * two above is split into 16 linear buckets, so a recorded value is off by at most 1/16 (6%) of
+     * itself. Quantiles cover the last one to two windows of values, since buckets are rotated every
+     * WINDOW_MS, while the count and sum cover everything recorded.
+     */
+    public static class Histogram implements Series {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+        private static final long WINDOW_MS = 60_000;
+
+        // Multiplies recorded values into the exported unit, e.g. 1e-9 to export nanoseconds as seconds
+        private final double unit;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+        private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+        private volatile long rotatedMillis = System.currentTimeMillis();
+
+        private Histogram(double unit) {
+            this.unit = unit;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(0, value);
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return shift * SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        // The highest value that falls into the bucket
+        private static long bucketHigh(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long first = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+            return first + (1L << shift) - 1;
+        }
+
+        public void record(long value) {
+            this.current.incrementAndGet(bucket(value));
+            this.count.increment();
+            this.sum.add(value);
+        }
+
+        // Records the nanoseconds elapsed since a System.nanoTime() reading
+        public void recordSince(long startNanos) {
+            this.record(System.nanoTime() - startNanos);
+        }
+
+        private void rotate() {
+            long now = System.currentTimeMillis();
+            if (now - this.rotatedMillis < WINDOW_MS) {
+                return;
+            }
+            synchronized (this) {
+                if (now - this.rotatedMillis >= WINDOW_MS) {
+                    // A record racing the swap lands in the previous window, which is still exported
+                    this.previous = this.current;
+                    this.current = new AtomicLongArray(BUCKETS);
+                    this.rotatedMillis = now;
+                }
+            }
+        }
+
+        // The values at the quantiles of the current and previous windows, in recorded units
+        private long[] quantiles() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            AtomicLongArray current = this.current;
+            AtomicLongArray previous = this.previous;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = current.get(i) + previous.get(i);
+                total += counts[i];
+            }
+            long[] values = new long[QUANTILES.length];
+            int q = 0;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS && q < QUANTILES.length && total > 0; i++) {
+                seen += counts[i];
+                while (q < QUANTILES.length && seen >= Math.ceil(QUANTILES[q] * total)) {
+                    values[q++] = bucketHigh(i);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            this.rotate();
+            long[] values = this.quantiles();
+            for (int i = 0; i < QUANTILES.length; i++) {
+                String quantile = String.format("quantile=\"%s\"", QUANTILES[i]);
+                sample(out, name, labels.isEmpty() ? quantile : labels + "," + quantile, values[i] * this.unit);
+            }
+            sample(out, name + "_sum", labels, this.sum.sum() * this.unit);
+            sample(out, name + "_count", labels, this.count.sum());
+        }
+    }
+
+    private record Supplied(DoubleSupplier value) implements Series {
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            sample(out, name, labels, this.value.getAsDouble());
+        }
+    }
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    // Label names and values alternate, e.g. labels("peer", address, "op", "GET")
+    private static String labels(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return out.toString();
+    }
+
+    private Series series(String name, String type, String help, String[] labels, Supplier<Series> create) {
+        Family family = this.families.computeIfAbsent(name, ignored -> new Family(type, help, new ConcurrentHashMap<>()));
+        return family.series().computeIfAbsent(labels(labels), ignored -> create.get());
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) this.series(name, "counter", help, labels, Counter::new);
+    }
+
+    // A histogram of durations in nanoseconds, exported in seconds
+    public Histogram timer(String name, String help, String... labels) {
+        return (Histogram) this.series(name, "summary", help, labels, () -> new Histogram(1e-9));
+    }
+
+    // A histogram of plain values, like sizes or counts
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) this.series(name, "summary", help, labels, () -> new Histogram(1));
+    }
+
+    // A value read when scraped; registering the same name and labels again replaces the supplier
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        this.supplied(name, "gauge", help, value, labels);
+    }
+
+    // A count kept elsewhere, read when scraped
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        this.supplied(name, "counter", help, value, labels);
+    }
+
+    private void supplied(String name, String type, String help, DoubleSupplier value, String... labels) {
+        Family family = this.families.computeIfAbsent(name, ignored -> new Family(type, help, new ConcurrentHashMap<>()));
+        family.series().put(labels(labels), new Supplied(value));
+    }
+
+    // Drops the family's series whose label has none of the values, e.g. peers that left the ring
+    public void retain(String name, String label, Collection<String> values) {
+        Family family = this.families.get(name);
+        if (family == null) {
+            return;
+        }
+        List<String> matches = values.stream().map(value -> labels(label, value)).toList();
+        family.series().keySet().removeIf(labels -> matches.stream().noneMatch(match -> labels.equals(match)
+                || labels.startsWith(match + ",") || labels.contains("," + match + ",") || labels.endsWith("," + match)));
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    // The Prometheus text exposition format, version 0.0.4
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : new TreeMap<>(this.families).entrySet()) {
+            Family family = entry.getValue();
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type()).append('\n');
+            for (Map.Entry<String, Series> series : new TreeMap<>(family.series()).entrySet()) {
+                try {
+                    series.getValue().write(out, entry.getKey(), series.getKey());
+                } catch (RuntimeException e) {
+                    // A gauge whose source has gone away; the rest of the scrape is still useful
+                    e.printStackTrace();
+                }
+            }
+        }
+        return out.toString();
+    }
+}
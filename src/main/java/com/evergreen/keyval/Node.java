@@ -1,78 +1,697 @@
 package com.evergreen.keyval;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
 import io.javalin.http.Context;
 import io.javalin.http.Handler;
+import io.javalin.http.ServiceUnavailableResponse;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public class Node extends ClusterMember {
+    private static final int SCAN_DEFAULT_LIMIT = 100;
+    private static final int SCAN_MAX_LIMIT = 10000;
+    // Keeps expiry times well clear of overflow
+    private static final long MAX_TTL_SECONDS = Integer.MAX_VALUE;
+
+    // Stores hints for replicas that missed the deadline; the default async pool is too small to block on
+    private final ExecutorService hintExecutor = Threads.executor("hint-store-");
+    // Sends hedged reads once a replica has missed its deadline, and read repairs
+    private final ExecutorService readExecutor = Threads.executor("read-");
+    // Iterators held open on this replica between the pages of client scans
+    private final ScanCursors scanCursors = new ScanCursors(Config.SCAN_CURSOR_IDLE_MS);
+
     public Node(String hostname, int port, String[] nodes) {
         super(hostname, port, nodes);
-        Javalin app = Javalin.create()
+        Javalin app = Javalin.create(config -> {
+                    config.useVirtualThreads = Config.VIRTUAL_THREADS;
+                    config.requestLogger.http(this::recordRequest);
+                })
+                .before(ctx -> {
+                    ctx.header(PARTITIONER_HEADER, this.partitioner.name());
+                    if (this.compression.advertisement() != null) {
+                        ctx.header(WireCompression.HEADER, this.compression.advertisement());
+                    }
+                })
+                .post("/db/_mget", this.handleClientMultiGet())
+                .post("/db/_mput", this.handleClientMultiPut())
+                .get("/db/_scan", this.handleClientScan())
                 .get("/db/{key}", this.handleClientGet())
                 .post("/db/{key}", this.handleClientPost())
                 .delete("/db/{key}", this.handleClientDelete())
+                .get("/hints", ctx -> ctx.json(this.db.hints().stats()))
+                .get("/cache", ctx -> ctx.json(this.db.cacheStats()))
+                .get("/metrics", ctx -> ctx.contentType("text/plain; version=0.0.4; charset=utf-8").result(this.metrics.scrape()))
                 .get("/nodes", this.handleNodesGet())
                 .post("/nodes", this.handleAllNodesPost())
+                .post("/nodes/digest", this.handleNodesDigest())
+                .get("/nodes/health", ctx -> ctx.json(Map.of(
+                        "phiThreshold", Config.PHI_THRESHOLD,
+                        "suspected", this.suspectedSince.keySet(),
+                        "peers", this.failureDetector.stats(),
+                        "latency", this.replicaLatency.stats())))
                 .post("/ring", this.handleRingPost())
                 .get("/keys", this.handleKeysGet())
+                .get("/keys/stream", this.handleKeysStream())
+                .get("/keys/snapshot", this.handleKeysSnapshot())
                 .post("/keys", this.handleKeysPost())
+                .post("/keys/mget", this.handleKeysMultiGet())
                 .delete("/keys", this.handleKeysDelete())
                 .get("/{key}", this.handleDirectGet())
                 .post("/{key}", this.handleDirectPost())
                 .delete("/{key}", this.handleDirectDelete());
         app.start(port);
+
+        try {
+            new RpcServer(port + Config.RPC_PORT_OFFSET, this::handleRpc, this.compression);
+        } catch (IOException e) {
+            System.err.printf("Unable to start RPC server on %d\n", port + Config.RPC_PORT_OFFSET);
+            e.printStackTrace();
+        }
     }
 
-    private void recursiveGet(Context ctx, String key, List<String> nodes, int step) {
-        String node = nodes.get(step);
-        String urlString = String.format("http://%s/%s", node, key);
+    // Times every HTTP request by the route it matched, so /db/{key} is one series rather than one per key
+    private void recordRequest(Context ctx, Float executionTimeMs) {
+        String path;
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(new URI(urlString))
-                    .GET()
-                    .build();
-            HttpResponse<String> response = this.httpClient
-                    .send(request, HttpResponse.BodyHandlers.ofString());
-            String value = response.body();
-            if (value == null) {
-                ctx.status(404);
+            path = ctx.endpointHandlerPath();
+        } catch (IllegalStateException e) {
+            path = "";
+        }
+        this.metrics.timer("keyval_http_request_seconds", "Duration of HTTP requests served, by route and status",
+                        "method", ctx.method().name(), "path", path.isEmpty() ? "unmatched" : path,
+                        "status", String.valueOf(ctx.statusCode()))
+                .record((long) (executionTimeMs * 1_000_000));
+    }
+
+    // Serves replica operations sent by coordinators over the internal RPC transport
+    private Rpc.Frame handleRpc(Rpc.Frame request) {
+        switch (request.code()) {
+            case Rpc.GET: {
+                final byte[] result = this.db.getStored(new String(request.payload(), StandardCharsets.UTF_8));
+                return result == null ? request.reply(Rpc.NOT_FOUND, null) : request.reply(Rpc.OK, result);
+            }
+            case Rpc.GET_DIGEST: {
+                final byte[] result = this.db.getStored(new String(request.payload(), StandardCharsets.UTF_8));
+                return result == null
+                        ? request.reply(Rpc.NOT_FOUND, null)
+                        : request.reply(Rpc.OK, digest(request.payload(), result));
+            }
+            case Rpc.PUT: {
+                List<byte[]> keyValue = Rpc.decodeList(request.payload());
+                boolean written = this.db.postVersioned(new String(keyValue.get(0), StandardCharsets.UTF_8), keyValue.get(1));
+                return request.reply(written ? Rpc.OK : Rpc.ERROR, null);
+            }
+            case Rpc.DELETE: {
+                // The key and its tombstone; NOT_FOUND means no live value was deleted, not a failure
+                List<byte[]> keyTombstone = Rpc.decodeList(request.payload());
+                final byte[] result = this.db.delete(new String(keyTombstone.get(0), StandardCharsets.UTF_8), keyTombstone.get(1));
+                return result == null ? request.reply(Rpc.NOT_FOUND, null) : request.reply(Rpc.OK, result);
+            }
+            case Rpc.MULTI_GET: {
+                List<String> keys = Rpc.decodeList(request.payload()).stream()
+                        .map(key -> new String(key, StandardCharsets.UTF_8))
+                        .toList();
+                List<byte[]> values = this.db.multiGetStored(keys);
+                return values == null ? request.reply(Rpc.ERROR, null) : request.reply(Rpc.OK, Rpc.encodeList(values));
+            }
+            case Rpc.MULTI_GET_DIGEST: {
+                List<byte[]> keyBytes = Rpc.decodeList(request.payload());
+                List<String> keys = keyBytes.stream()
+                        .map(key -> new String(key, StandardCharsets.UTF_8))
+                        .toList();
+                List<byte[]> values = this.db.multiGetStored(keys);
+                if (values == null) {
+                    return request.reply(Rpc.ERROR, null);
+                }
+                List<byte[]> digests = new ArrayList<>(values.size());
+                for (int i = 0; i < values.size(); i++) {
+                    digests.add(values.get(i) == null ? null : digest(keyBytes.get(i), values.get(i)));
+                }
+                return request.reply(Rpc.OK, Rpc.encodeList(digests));
+            }
+            case Rpc.MULTI_PUT: {
+                List<byte[]> pairs = Rpc.decodeList(request.payload());
+                List<byte[]> keys = new ArrayList<>(pairs.size() / 2);
+                List<byte[]> values = new ArrayList<>(pairs.size() / 2);
+                for (int i = 0; i < pairs.size(); i += 2) {
+                    keys.add(pairs.get(i));
+                    values.add(pairs.get(i + 1));
+                }
+                return request.reply(this.db.postBatch(keys, values) ? Rpc.OK : Rpc.ERROR, null);
+            }
+            case Rpc.SCAN: {
+                // A cursor id of 0 opens a cursor over the tokens [from, to] after the given key; any
+                // other id continues that cursor and ignores the rest. The reply's cursor id is 0 once
+                // the tokens are exhausted, and the request's cursor is NOT_FOUND if it was closed.
+                ByteBuffer payload = ByteBuffer.wrap(request.payload());
+                long cursorId = payload.getLong();
+                long from = payload.getLong();
+                long to = payload.getLong();
+                int limit = payload.getInt();
+                byte[] after = payload.hasRemaining() ? new byte[payload.remaining()] : null;
+                if (after != null) {
+                    payload.get(after);
+                }
+                DBClient.ScanCursor cursor = cursorId == 0 ? this.db.openScan(from, to, after) : this.scanCursors.take(cursorId);
+                if (cursor == null) {
+                    return request.reply(Rpc.NOT_FOUND, null);
+                }
+                List<byte[]> pairs = new ArrayList<>();
+                boolean more;
+                try {
+                    more = cursor.next(limit, (key, stored) -> {
+                        pairs.add(key);
+                        pairs.add(stored);
+                    });
+                } catch (IOException e) {
+                    cursor.close();
+                    return request.reply(Rpc.ERROR, null);
+                }
+                long nextId = 0;
+                if (more) {
+                    nextId = this.scanCursors.park(cursorId, cursor);
+                } else {
+                    cursor.close();
+                }
+                byte[] list = Rpc.encodeList(pairs);
+                return request.reply(Rpc.OK, ByteBuffer.allocate(8 + list.length).putLong(nextId).put(list).array());
+            }
+            case Rpc.MERKLE_HASHES: {
+                // [long lowerBound][long upperBound][int node]* -> [long hash]*
+                ByteBuffer payload = ByteBuffer.wrap(request.payload());
+                long lowerBound = payload.getLong();
+                long upperBound = payload.getLong();
+                if (!this.primaryFor(lowerBound, upperBound)) {
+                    return request.reply(Rpc.NOT_FOUND, null);
+                }
+                MerkleTree tree = this.db.merkleTree(lowerBound, upperBound);
+                ByteBuffer hashes = ByteBuffer.allocate(payload.remaining() * 2);
+                while (payload.hasRemaining()) {
+                    int node = payload.getInt();
+                    hashes.putLong(node > 0 && node < tree.nodeCount() ? tree.hash(node) : 0);
+                }
+                return request.reply(Rpc.OK, hashes.array());
+            }
+            default:
+                return request.reply(Rpc.ERROR, null);
+        }
+    }
+
+    // [long version][long digest] of a stored value, as answered to digest reads
+    private static byte[] digest(byte[] key, byte[] stored) {
+        return ByteBuffer.allocate(16)
+                .putLong(Versioned.version(stored))
+                .putLong(Versioned.digest(key, stored))
+                .array();
+    }
+
+    // Reads a client's value as bytes, straight into its encoding with its version, content type and
+    // expiry
+    private static byte[] readValue(Context ctx, long version) throws IOException {
+        return Versioned.read(version, ctx.header("Content-Type"), requestExpiresAt(ctx), ctx.bodyInputStream(),
+                ctx.contentLength());
+    }
+
+    // When a value written by this request expires: its "ttl" query parameter or X-TTL header, in
+    // seconds from now, or 0 if it has neither and never expires
+    private static long requestExpiresAt(Context ctx) {
+        String ttl = ctx.queryParam("ttl");
+        if (ttl == null) {
+            ttl = ctx.header("X-TTL");
+        }
+        if (ttl == null) {
+            return 0;
+        }
+        long seconds;
+        try {
+            seconds = Long.parseLong(ttl);
+        } catch (NumberFormatException e) {
+            seconds = 0;
+        }
+        if (seconds <= 0 || seconds > MAX_TTL_SECONDS) {
+            throw new BadRequestResponse(String.format("Invalid ttl %s, expected seconds between 1 and %d", ttl, MAX_TTL_SECONDS));
+        }
+        return System.currentTimeMillis() + seconds * 1000;
+    }
+
+    // Answers with a stored value as it was written, in its content type if it had one and with the
+    // seconds it has left if it expires, streamed from its encoding rather than copied out of it
+    private static void resultValue(Context ctx, byte[] stored) {
+        int offset = Versioned.valueOffset(stored);
+        String contentType = Versioned.contentType(stored);
+        if (contentType != null) {
+            ctx.contentType(contentType);
+        }
+        long expiresAt = Versioned.expiresAt(stored);
+        if (expiresAt != 0) {
+            // Seconds left, rounded up so a value is never reported with 0 before it expires
+            ctx.header("X-TTL", String.valueOf(Math.max(1, (expiresAt - System.currentTimeMillis() + 999) / 1000)));
+        }
+        ctx.header("Content-Length", String.valueOf(stored.length - offset));
+        ctx.result(new ByteArrayInputStream(stored, offset, stored.length - offset));
+    }
+
+    // A peer's request body, decompressed if it was sent compressed
+    private byte[] requestBody(Context ctx) throws IOException {
+        byte[] body = ctx.bodyAsBytes();
+        return WireCompression.ENCODING.equals(ctx.header("Content-Encoding")) ? this.compression.decompress(body) : body;
+    }
+
+    // Answers a peer, compressing the body if the request accepts it and it is worth compressing
+    private void resultCompressed(Context ctx, byte[] body, String channel) {
+        byte[] compressed = this.compression.acceptsEncoding(ctx.header("Accept-Encoding"))
+                ? this.compression.compress(body, channel)
+                : null;
+        if (compressed != null) {
+            ctx.header("Content-Encoding", WireCompression.ENCODING);
+            body = compressed;
+        }
+        ctx.result(body);
+    }
+
+    // Quorum for this request: the "quorum" query parameter or X-Quorum header, else the configured
+    // default. A quorum outside [1, N] is refused rather than clamped, so a request never runs at a
+    // different consistency level than it asked for.
+    private int requestQuorum(Context ctx, int defaultQuorum) {
+        String quorum = ctx.queryParam("quorum");
+        if (quorum == null) {
+            quorum = ctx.header("X-Quorum");
+        }
+        if (quorum == null) {
+            return defaultQuorum;
+        }
+        int required;
+        try {
+            required = Integer.parseInt(quorum);
+        } catch (NumberFormatException e) {
+            throw new BadRequestResponse(String.format("Invalid quorum %s", quorum));
+        }
+        if (required < 1 || required > Config.REPLICATION_FACTOR) {
+            throw new BadRequestResponse(String.format("Invalid quorum %s, expected between 1 and %d",
+                    quorum, Config.REPLICATION_FACTOR));
+        }
+        return required;
+    }
+
+    // A quorum over the key's preference list. A list shorter than the quorum, as in a cluster of fewer
+    // than N nodes, is refused with 503 rather than waiting on fewer replicas than the request asked for.
+    private static <T> Quorum<T> replicaQuorum(int required, String[] preferenceList) {
+        if (preferenceList.length < required) {
+            throw new ServiceUnavailableResponse(String.format("Quorum %d needs more replicas than the %d in the ring",
+                    required, preferenceList.length));
+        }
+        return new Quorum<>(required, preferenceList.length);
+    }
+
+    // Sends an operation to a replica over the internal RPC transport. Suspected replicas are failed
+    // right away, so writes go straight to hints and reads to the next replica.
+    private CompletableFuture<Rpc.Frame> replicaCall(String nodeAddress, byte op, byte[] payload) {
+        if (this.suspected(nodeAddress)) {
+            return CompletableFuture.failedFuture(new IOException(String.format("%s is suspected", nodeAddress)));
+        }
+        long start = this.replicaLatency.start(nodeAddress);
+        return this.peerCall(nodeAddress, op, payload)
+                .whenComplete((response, e) -> this.replicaLatency.finish(nodeAddress, start,
+                        e == null && response.code() != Rpc.ERROR, op == Rpc.GET || op == Rpc.GET_DIGEST));
+    }
+
+    // Completes with the replica's response, or with a 202 once hints for the replica have been stored
+    // because its write failed or missed keyval.hintDeadlineMs. The hints are discarded again if the
+    // replica acknowledges the write afterwards.
+    private CompletableFuture<ReplicaResponse> hintedWrite(String nodeAddress, CompletableFuture<Rpc.Frame> call,
+                                                           Predicate<Rpc.Frame> acknowledged, byte op,
+                                                           List<byte[]> keys, List<byte[]> values) {
+        CompletableFuture<ReplicaResponse> result = new CompletableFuture<>();
+        List<HintLog.Hint> storedHints = new ArrayList<>();
+        // Held while writing to RocksDB, so a lock rather than synchronized to keep virtual threads unpinned
+        ReentrantLock lock = new ReentrantLock();
+        Runnable storeHints = () -> {
+            lock.lock();
+            try {
+                if (result.isDone()) {
+                    return;
+                }
+                List<HintLog.Hint> hints = this.db.hints().store(nodeAddress, op, keys, values);
+                if (hints == null) {
+                    result.complete(new ReplicaResponse(503));
+                } else {
+                    storedHints.addAll(hints);
+                    result.complete(new ReplicaResponse(202));
+                }
+            } finally {
+                lock.unlock();
+            }
+        };
+        call.whenComplete((response, e) -> {
+            if (e == null && acknowledged.test(response)) {
+                lock.lock();
+                try {
+                    if (!storedHints.isEmpty()) {
+                        this.db.hints().discard(storedHints);
+                    }
+                    result.complete(ReplicaResponse.of(response));
+                } finally {
+                    lock.unlock();
+                }
             } else {
-                ctx.status(200);
-                ctx.result(value);
+                storeHints.run();
+            }
+        });
+        CompletableFuture.delayedExecutor(Config.HINT_DEADLINE_MS, TimeUnit.MILLISECONDS, this.hintExecutor).execute(storeHints);
+        return result;
+    }
+
+    // A replica's answer, whether it came over RPC or from this node's own DBClient. 202 marks a write
+    // that was accepted as a hint on the replica's behalf.
+    private record ReplicaResponse(int statusCode) {
+        boolean written() {
+            return this.statusCode == 200 || this.statusCode == 202;
+        }
+
+        static ReplicaResponse of(Rpc.Frame response) {
+            return switch (response.code()) {
+                case Rpc.OK -> new ReplicaResponse(200);
+                case Rpc.NOT_FOUND -> new ReplicaResponse(404);
+                default -> new ReplicaResponse(500);
+            };
+        }
+    }
+
+    // The preference list without this node, which the coordinator serves in-process instead
+    private String[] remoteReplicas(String[] preferenceList) {
+        return Arrays.stream(preferenceList)
+                .filter(nodeAddress -> !nodeAddress.equals(this.address))
+                .toArray(String[]::new);
+    }
+
+    // A replica's answer to a read: the version and digest of its copy, and the copy itself, encoded by
+    // Versioned, unless only a digest was asked for. 404 means the replica has no copy; a copy may
+    // still be a tombstone or an expired value, which the client sees as missing.
+    private record ReadResponse(String replica, int statusCode, long version, long digest, byte[] stored) {
+        static ReadResponse ofStored(String replica, byte[] key, byte[] stored) {
+            if (stored == null) {
+                return new ReadResponse(replica, 404, 0, 0, null);
+            }
+            return new ReadResponse(replica, 200, Versioned.version(stored), Versioned.digest(key, stored), stored);
+        }
+
+        static ReadResponse ofDigest(String replica, byte[] digest) {
+            if (digest == null) {
+                return new ReadResponse(replica, 404, 0, 0, null);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(digest);
+            return new ReadResponse(replica, 200, buffer.getLong(), buffer.getLong(), null);
+        }
+
+        // The answer to a GET or GET_DIGEST that came back OK or NOT_FOUND
+        static ReadResponse of(String replica, byte[] key, byte op, Rpc.Frame response) {
+            byte[] payload = response.code() == Rpc.OK ? response.payload() : null;
+            return op == Rpc.GET ? ofStored(replica, key, payload) : ofDigest(replica, payload);
+        }
+
+        boolean newerThan(ReadResponse other) {
+            return this.statusCode == 200 && (other.statusCode != 200
+                    || Versioned.newer(this.version, this.digest, other.version, other.digest));
+        }
+
+        // The value as text, for JSON answers
+        String value() {
+            int offset = Versioned.valueOffset(this.stored);
+            return new String(this.stored, offset, this.stored.length - offset, StandardCharsets.UTF_8);
+        }
+    }
+
+    // The preference list without this node, fastest replicas first and suspected ones last
+    private String[] readReplicas(String[] preferenceList, boolean isReplica) {
+        String[] replicas = this.replicaLatency.fastestFirst(isReplica ? this.remoteReplicas(preferenceList) : preferenceList);
+        return Stream.concat(
+                Arrays.stream(replicas).filter(nodeAddress -> !this.suspected(nodeAddress)),
+                Arrays.stream(replicas).filter(this::suspected))
+                .toArray(String[]::new);
+    }
+
+    // One of the replica answers a read is waiting for. The original request and any hedged or retried
+    // requests for it share an attempt, so a failure only moves on to another replica if nothing else
+    // is still in flight for it.
+    private static class ReadAttempt {
+        private boolean answered;
+        private int inFlight;
+    }
+
+    private void recursiveGet(Quorum<ReadResponse> quorum, String key, String[] nodes, AtomicInteger step, byte op) {
+        this.recursiveGet(quorum, key, nodes, step, op, new ReadAttempt());
+    }
+
+    // Asks the next replica for the key, or for its digest when op is GET_DIGEST. If it has not answered by its hedge deadline the next replica
+    // is asked as well, and if it fails the next replica is asked instead; every answer counts toward
+    // the quorum, since each comes from a different replica.
+    private void recursiveGet(Quorum<ReadResponse> quorum, String key, String[] nodes, AtomicInteger step,
+                              byte op, ReadAttempt attempt) {
+        int nodeIdx = step.getAndIncrement();
+        if (nodeIdx >= nodes.length || quorum.future().isDone()) {
+            return;
+        }
+        String node = nodes[nodeIdx];
+        synchronized (attempt) {
+            attempt.inFlight++;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Rpc.Frame> call = this.replicaCall(node, op, keyBytes);
+        if (Config.HEDGE_PERCENTILE > 0 && nodeIdx + 1 < nodes.length && !call.isDone()) {
+            CompletableFuture.delayedExecutor(this.replicaLatency.hedgeDelayMs(node), TimeUnit.MILLISECONDS,
+                    this.readExecutor).execute(() -> {
+                synchronized (attempt) {
+                    if (attempt.answered || call.isDone()) {
+                        return;
+                    }
+                }
+                this.metrics.counter("keyval_hedged_reads_total", "Reads also sent to the next replica after missing the hedge deadline").inc();
+                this.recursiveGet(quorum, key, nodes, step, op, attempt);
+            });
+        }
+        call.whenComplete((response, e) -> {
+            boolean answered = e == null && (response.code() == Rpc.OK || response.code() == Rpc.NOT_FOUND);
+            boolean retry;
+            synchronized (attempt) {
+                attempt.inFlight--;
+                attempt.answered |= answered;
+                retry = !attempt.answered && attempt.inFlight == 0;
             }
-        } catch (InterruptedException | IOException e) {
-            if (step >= nodes.size()) {
-                ctx.status(404);
+            if (answered) {
+                quorum.success(ReadResponse.of(node, keyBytes, op, response));
             } else {
-                this.recursiveGet(ctx, key, nodes, step + 1);
+                quorum.failure();
+                if (retry) {
+                    this.recursiveGet(quorum, key, nodes, step, op, attempt);
+                }
             }
-        } catch (URISyntaxException e) {
-            System.err.printf("Unable to create URI %s\n", urlString);
+        });
+    }
+
+    // Sends a scan request to a replica, or serves it locally if this node is the replica
+    private CompletableFuture<Rpc.Frame> scanCall(String nodeAddress, byte[] payload) {
+        if (nodeAddress.equals(this.address)) {
+            return CompletableFuture.completedFuture(this.handleRpc(new Rpc.Frame(0, Rpc.SCAN, payload)));
         }
+        return this.replicaCall(nodeAddress, Rpc.SCAN, payload);
     }
 
+    // Reads up to limit keys of the position's slice, continuing the replica cursor the position names
+    // if it is still open, and otherwise opening a new cursor after the last key read on this node if
+    // it is a replica or on the fastest other replica that answers. Visits the pairs and returns the
+    // position after them, or null once the ring has been read. Scans read a single replica per slice,
+    // without quorums or read repair.
+    private ScanPosition scanPage(ScanPosition position, int limit, DBClient.RangeVisitor visitor)
+            throws IOException, InterruptedException {
+        String[] preferenceList = this.ring.preferenceList(position.from(), this.replicas);
+        boolean isReplica = contains(preferenceList, this.address);
+        List<String> candidates = new ArrayList<>();
+        if (position.replica() != null && position.cursorId() != 0) {
+            candidates.add(position.replica());
+        }
+        if (isReplica) {
+            candidates.add(this.address);
+        }
+        candidates.addAll(Arrays.asList(this.readReplicas(preferenceList, isReplica)));
+
+        long cursorId = position.cursorId();
+        for (String candidate : new LinkedHashSet<>(candidates)) {
+            if (!candidate.equals(position.replica())) {
+                cursorId = 0;
+            }
+            byte[] after = position.after() == null ? new byte[0] : position.after();
+            byte[] payload = ByteBuffer.allocate(28 + after.length)
+                    .putLong(cursorId)
+                    .putLong(position.from())
+                    .putLong(position.to())
+                    .putInt(limit)
+                    .put(after)
+                    .array();
+            Rpc.Frame response;
+            try {
+                response = this.scanCall(candidate, payload).get();
+                if (response.code() == Rpc.NOT_FOUND && cursorId != 0) {
+                    // The cursor was closed as idle; start a new one after the last key read
+                    cursorId = 0;
+                    response = this.scanCall(candidate, ByteBuffer.wrap(payload).putLong(0, 0).array()).get();
+                }
+            } catch (ExecutionException e) {
+                continue;
+            }
+            if (response.code() != Rpc.OK) {
+                continue;
+            }
+            ByteBuffer reply = ByteBuffer.wrap(response.payload());
+            long nextCursorId = reply.getLong();
+            byte[] list = new byte[reply.remaining()];
+            reply.get(list);
+            List<byte[]> pairs = Rpc.decodeList(list);
+            for (int i = 0; i < pairs.size(); i += 2) {
+                visitor.visit(pairs.get(i), pairs.get(i + 1));
+            }
+            return position.next(this.ring, candidate, nextCursorId, pairs.isEmpty() ? null : pairs.get(pairs.size() - 2));
+        }
+        throw new IOException(String.format("No replica of tokens [%d, %d] answered", position.from(), position.to()));
+    }
+
+    // curl "http://localhost:3000/db/_scan?limit=100&cursor=..."
+    // Pages through every key in the cluster in token order, streaming them as NDJSON lines of
+    // {"key": ..., "value": ...} followed by a {"cursor": ...} line to pass back for the next page,
+    // which is null once the scan is complete. A page is filled from as many slices as it takes, one
+    // replica page at a time, so the coordinator holds at most a page in memory however large the data.
+    // If no replica of a slice answers, the last line also carries an "error" and the cursor to retry.
+    private Handler handleClientScan() {
+        return ctx -> {
+            int limit = SCAN_DEFAULT_LIMIT;
+            ScanPosition position;
+            try {
+                if (ctx.queryParam("limit") != null) {
+                    limit = Integer.parseInt(ctx.queryParam("limit"));
+                }
+                String cursor = ctx.queryParam("cursor");
+                position = cursor == null ? ScanPosition.slice(this.ring, Long.MIN_VALUE) : ScanPosition.decode(cursor);
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestResponse(e.getMessage());
+            }
+            if (limit < 1 || limit > SCAN_MAX_LIMIT) {
+                throw new BadRequestResponse(String.format("limit must be between 1 and %d", SCAN_MAX_LIMIT));
+            }
+            ctx.status(200);
+            ctx.contentType("application/x-ndjson");
+            OutputStream out = new BufferedOutputStream(ctx.outputStream(), 1 << 16);
+            int[] remaining = {limit};
+            String error = null;
+            while (remaining[0] > 0 && position != null) {
+                try {
+                    position = this.scanPage(position, remaining[0], (key, stored) -> {
+                        ObjectNode line = this.objectMapper.createObjectNode()
+                                .put("key", new String(key, StandardCharsets.UTF_8))
+                                .put("value", new String(Versioned.value(stored), StandardCharsets.UTF_8));
+                        out.write(this.objectMapper.writeValueAsBytes(line));
+                        out.write('\n');
+                        remaining[0]--;
+                    });
+                } catch (IOException e) {
+                    error = e.getMessage();
+                    break;
+                }
+                out.flush();
+            }
+            ObjectNode last = this.objectMapper.createObjectNode().put("cursor", position == null ? null : position.encode());
+            if (error != null) {
+                last.put("error", error);
+            }
+            out.write(this.objectMapper.writeValueAsBytes(last));
+            out.write('\n');
+            out.flush();
+        };
+    }
+
+    // Reads the key from R replicas, but only one of them sends the value; the others send a digest of
+    // their copy, and the newest copy wins
     private Handler handleClientGet() {
         try {
             return ctx -> {
                 String key = ctx.pathParam("key");
-                final byte[] val = this.db.get(key);
-                if (val == null) {
-                    List<Long> preferenceList = this.calculatePreferenceList(key);
-                    List<String> preferenceAddresses = preferenceList.stream().map(nodeIdToAddress::get).toList();
-                    this.recursiveGet(ctx, key, preferenceAddresses.subList(1, preferenceAddresses.size()), 0);
-                } else {
-                    ctx.result(new String(val));
-                    ctx.status(200);
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                int readQuorum = this.requestQuorum(ctx, Config.READ_QUORUM);
+                String[] preferenceList = this.calculatePreferenceList(key);
+                boolean isReplica = contains(preferenceList, this.address);
+                Quorum<ReadResponse> quorum = replicaQuorum(readQuorum, preferenceList);
+
+                boolean localRead = false;
+                if (isReplica) {
+                    final byte[] stored = this.db.getStored(key);
+                    if (stored != null && quorum.required() == 1) {
+                        if (Versioned.live(stored, System.currentTimeMillis())) {
+                            ctx.status(200);
+                            resultValue(ctx, stored);
+                        } else {
+                            ctx.status(404);
+                        }
+                        return;
+                    }
+                    if (stored != null || quorum.required() > 1) {
+                        quorum.success(ReadResponse.ofStored(this.address, keyBytes, stored));
+                        localRead = true;
+                    } else {
+                        // A single-replica read that misses locally is answered by the other replicas
+                        quorum.failure();
+                    }
+                }
+
+                String[] remoteReplicas = this.readReplicas(preferenceList, isReplica);
+                AtomicInteger step = new AtomicInteger();
+                int outstanding = isReplica && quorum.required() > 1 ? quorum.required() - 1 : quorum.required();
+                for (int i = 0; i < outstanding; i++) {
+                    this.recursiveGet(quorum, key, remoteReplicas, step,
+                            i == 0 && !localRead ? Rpc.GET : Rpc.GET_DIGEST);
                 }
+                ctx.future(() -> quorum.future()
+                        .thenCompose(responses -> this.resolveRead(key, responses))
+                        .thenAccept(newest -> {
+                            if (newest == null) {
+                                ctx.status(503);
+                            } else if (newest.statusCode() == 200 && Versioned.live(newest.stored(), System.currentTimeMillis())) {
+                                ctx.status(200);
+                                resultValue(ctx, newest.stored());
+                            } else {
+                                ctx.status(404);
+                            }
+                        }));
             };
         } catch (Exception e) {
             System.err.println("Unable to create get handler");
@@ -82,35 +701,114 @@ public class Node extends ClusterMember {
         }
     }
 
+    // Picks the newest copy among a read quorum's responses, fetching it from its replica if only its
+    // digest was read, and repairs the replicas that answered with an older copy. Completes with null
+    // when the quorum failed, and with a 404 response when no replica had the key.
+    private CompletableFuture<ReadResponse> resolveRead(String key, List<ReadResponse> responses) {
+        if (responses == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ReadResponse newest = responses.get(0);
+        ReadResponse newestRead = null;
+        for (ReadResponse response : responses) {
+            if (response.newerThan(newest)) {
+                newest = response;
+            }
+            if (response.stored() != null && (newestRead == null || response.newerThan(newestRead))) {
+                newestRead = response;
+            }
+        }
+        if (newest.statusCode() != 200 || newest.stored() != null) {
+            this.readRepair(key, newest, responses);
+            return CompletableFuture.completedFuture(newest);
+        }
+        // The replica sent with the value has an older copy than one that only sent a digest
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        String replica = newest.replica();
+        ReadResponse fallback = newestRead;
+        return this.replicaCall(replica, Rpc.GET, keyBytes).handle((response, e) -> {
+            ReadResponse fetched = e == null && response.code() != Rpc.ERROR
+                    ? ReadResponse.of(replica, keyBytes, Rpc.GET, response)
+                    : null;
+            if (fetched == null || fetched.stored() == null) {
+                // Better an older copy than no answer; the replicas converge through anti-entropy
+                System.err.printf("Unable to fetch the newest copy of %s from %s\n", key, replica);
+                return fallback;
+            }
+            this.readRepair(key, fetched, responses);
+            return fetched;
+        });
+    }
+
+    // Writes the newest copy back, in the background, to the replicas that answered with an older one
+    // or with none. Deletes are tombstones, so a missing copy is one the replica never received or has
+    // already purged, and the newest copy, tombstones included, is safe to write back.
+    private void readRepair(String key, ReadResponse newest, List<ReadResponse> responses) {
+        if (newest.stored() == null) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        for (ReadResponse response : responses) {
+            if (!newest.newerThan(response)) {
+                continue;
+            }
+            this.metrics.counter("keyval_read_repairs_total", "Older copies found by reads and written back").inc();
+            if (response.replica().equals(this.address)) {
+                this.readExecutor.execute(() -> this.db.postVersioned(key, newest.stored()));
+                continue;
+            }
+            this.replicaCall(response.replica(), Rpc.PUT, Rpc.encodeList(List.of(keyBytes, newest.stored())))
+                    .whenComplete((repaired, e) -> {
+                        if (e != null || repaired.code() != Rpc.OK) {
+                            System.err.printf("Unable to repair %s on %s\n", key, response.replica());
+                        }
+                    });
+        }
+    }
+
     private Handler handleClientPost() {
         try {
             return ctx -> {
                 String key = ctx.pathParam("key");
-                List<Long> preferenceList = this.calculatePreferenceList(key);
-                for (Long nodeId : preferenceList) {
-                    String postValue = ctx.body();
-                    String nodeAddress = this.nodeIdToAddress.get(nodeId);
-                    String urlString = String.format("http://%s/%s", nodeAddress, key);
-                    try {
-                        HttpRequest request = HttpRequest.newBuilder()
-                                .uri(new URI(urlString))
-                                .POST(HttpRequest.BodyPublishers.ofString(postValue))
-                                .build();
-                        HttpResponse<String> response = this.httpClient
-                                .send(request, HttpResponse.BodyHandlers.ofString());
-                        String responseValue = response.body();
-                        if (responseValue == null) {
-                            ctx.status(404);
-                        } else {
-                            ctx.status(200);
-                            ctx.result(responseValue);
-                        }
-                    } catch (InterruptedException | IOException e) {
-                        e.printStackTrace();
-                    } catch (URISyntaxException e) {
-                        System.err.printf("Unable to create URI %s\n", urlString);
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                // Every replica, and any hint, gets the same version, stamped here by the coordinator
+                byte[] stored = readValue(ctx, this.db.nextVersion());
+                byte[] putPayload = Rpc.encodeList(List.of(keyBytes, stored));
+                String[] preferenceList = this.calculatePreferenceList(key);
+                Quorum<ReplicaResponse> quorum = replicaQuorum(this.requestQuorum(ctx, Config.WRITE_QUORUM), preferenceList);
+                boolean isReplica = false;
+                for (String nodeAddress : preferenceList) {
+                    if (nodeAddress.equals(this.address)) {
+                        isReplica = true;
+                        continue;
+                    }
+                    this.hintedWrite(nodeAddress, this.replicaCall(nodeAddress, Rpc.PUT, putPayload),
+                                    response -> response.code() == Rpc.OK, Rpc.PUT, List.of(keyBytes), List.of(stored))
+                            .thenAccept(response -> {
+                                if (response.written()) {
+                                    quorum.success(response);
+                                } else {
+                                    System.err.printf("Replica %s did not acknowledge POST %s\n", nodeAddress, key);
+                                    quorum.failure();
+                                }
+                            });
+                }
+                // The local write runs while the remote replicas are in flight
+                if (isReplica) {
+                    if (!this.db.postVersioned(key, stored)) {
+                        quorum.failure();
+                    } else {
+                        quorum.success(new ReplicaResponse(200));
                     }
                 }
+                ctx.future(() -> quorum.future().thenAccept(responses -> {
+                    if (responses == null) {
+                        ctx.status(503);
+                    } else {
+                        ctx.status(200);
+                        resultValue(ctx, stored);
+                    }
+                }));
             };
         } catch (Exception e) {
             System.err.println("Unable to create get handler");
@@ -120,28 +818,49 @@ public class Node extends ClusterMember {
         }
     }
 
+    // Writes a tombstone to the replicas, versioned like a POST so it never replaces a newer write.
+    // Answers 200 if a replica held a live value and 404 if none did.
     private Handler handleClientDelete() {
         try {
             return ctx -> {
                 String key = ctx.pathParam("key");
-                List<Long> preferenceList = this.calculatePreferenceList(key);
-                for (Long nodeId : preferenceList) {
-                    String nodeAddress = this.nodeIdToAddress.get(nodeId);
-                    String urlString = String.format("http://%s/%s", nodeAddress, key);
-                    try {
-                        HttpRequest request = HttpRequest.newBuilder()
-                                .uri(new URI(urlString))
-                                .DELETE()
-                                .build();
-                        HttpResponse<String> response = this.httpClient
-                                .send(request, HttpResponse.BodyHandlers.ofString());
-                        ctx.status(response.statusCode());
-                    } catch (InterruptedException | IOException e) {
-                        e.printStackTrace();
-                    } catch (URISyntaxException e) {
-                        System.err.printf("Unable to create URI %s\n", urlString);
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                byte[] tombstone = Versioned.tombstone(this.db.nextVersion(), System.currentTimeMillis());
+                byte[] deletePayload = Rpc.encodeList(List.of(keyBytes, tombstone));
+                String[] preferenceList = this.calculatePreferenceList(key);
+                Quorum<ReplicaResponse> quorum = replicaQuorum(this.requestQuorum(ctx, Config.WRITE_QUORUM), preferenceList);
+                boolean isReplica = false;
+                for (String nodeAddress : preferenceList) {
+                    if (nodeAddress.equals(this.address)) {
+                        isReplica = true;
+                        continue;
                     }
+                    // A hint carries the tombstone as a PUT, so it is replayed versioned like any write
+                    this.hintedWrite(nodeAddress, this.replicaCall(nodeAddress, Rpc.DELETE, deletePayload),
+                                    response -> response.code() == Rpc.OK || response.code() == Rpc.NOT_FOUND,
+                                    Rpc.PUT, List.of(keyBytes), List.of(tombstone))
+                            .thenAccept(response -> {
+                                if (response.written() || response.statusCode() == 404) {
+                                    quorum.success(response);
+                                } else {
+                                    System.err.printf("Replica %s did not acknowledge DELETE %s\n", nodeAddress, key);
+                                    quorum.failure();
+                                }
+                            });
+                }
+                if (isReplica) {
+                    final byte[] result = this.db.delete(key, tombstone);
+                    quorum.success(new ReplicaResponse(result == null ? 404 : 200));
                 }
+                ctx.future(() -> quorum.future().thenAccept(responses -> {
+                    if (responses == null) {
+                        ctx.status(503);
+                    } else if (responses.stream().anyMatch(ReplicaResponse::written)) {
+                        ctx.status(200);
+                    } else {
+                        ctx.status(404);
+                    }
+                }));
             };
         } catch (Exception e) {
             System.err.println("Unable to create delete handler");
@@ -151,19 +870,228 @@ public class Node extends ClusterMember {
         }
     }
 
+    // Waits for every key's quorum and answers 503 with the keys that missed it, if any
+    private <T> CompletableFuture<List<String>> failedQuorums(Map<String, Quorum<T>> quorums) {
+        return CompletableFuture.allOf(quorums.values().stream().map(Quorum::future).toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> quorums.entrySet().stream()
+                        .filter(entry -> entry.getValue().future().join() == null)
+                        .map(Map.Entry::getKey)
+                        .toList());
+    }
+
+    // POST /db/_mget with a JSON array of keys. Keys are grouped by replica so each node receives one
+    // batched read, of values from the first replica of each key and of digests from the others; a key
+    // whose batch fails falls back to single-key reads from its remaining replicas.
+    private Handler handleClientMultiGet() {
+        return ctx -> {
+            List<String> keys = new ArrayList<>(new LinkedHashSet<>(
+                    this.objectMapper.readValue(ctx.body(), new TypeReference<List<String>>() {})));
+            int readQuorum = this.requestQuorum(ctx, Config.READ_QUORUM);
+
+            Map<String, Quorum<ReadResponse>> quorums = new HashMap<>();
+            Map<String, String[]> remoteReplicas = new HashMap<>();
+            Map<String, AtomicInteger> steps = new HashMap<>();
+            List<String> localKeys = new ArrayList<>();
+            for (String key : keys) {
+                String[] preferenceList = this.calculatePreferenceList(key);
+                boolean isReplica = contains(preferenceList, this.address);
+                quorums.put(key, replicaQuorum(readQuorum, preferenceList));
+                remoteReplicas.put(key, this.readReplicas(preferenceList, isReplica));
+                steps.put(key, new AtomicInteger());
+                if (isReplica) {
+                    localKeys.add(key);
+                }
+            }
+
+            HashMap<String, Integer> outstanding = new HashMap<>();
+            for (String key : keys) {
+                outstanding.put(key, quorums.get(key).required());
+            }
+            Set<String> localReads = new HashSet<>();
+            if (!localKeys.isEmpty()) {
+                List<byte[]> values = this.db.multiGetStored(localKeys);
+                for (int i = 0; i < localKeys.size(); i++) {
+                    String key = localKeys.get(i);
+                    Quorum<ReadResponse> quorum = quorums.get(key);
+                    byte[] stored = values == null ? null : values.get(i);
+                    if (stored != null || (values != null && quorum.required() > 1)) {
+                        quorum.success(ReadResponse.ofStored(this.address, key.getBytes(StandardCharsets.UTF_8), stored));
+                        outstanding.put(key, quorum.required() - 1);
+                        localReads.add(key);
+                    } else {
+                        quorum.failure();
+                    }
+                }
+            }
+
+            Map<String, List<String>> valueBatches = new HashMap<>();
+            Map<String, List<String>> digestBatches = new HashMap<>();
+            for (String key : keys) {
+                String[] replicas = remoteReplicas.get(key);
+                for (int i = 0; i < outstanding.get(key); i++) {
+                    int nodeIdx = steps.get(key).getAndIncrement();
+                    if (nodeIdx < replicas.length) {
+                        (i == 0 && !localReads.contains(key) ? valueBatches : digestBatches)
+                                .computeIfAbsent(replicas[nodeIdx], node -> new ArrayList<>()).add(key);
+                    }
+                }
+            }
+            this.multiGetBatches(valueBatches, Rpc.MULTI_GET, quorums, remoteReplicas, steps);
+            this.multiGetBatches(digestBatches, Rpc.MULTI_GET_DIGEST, quorums, remoteReplicas, steps);
+
+            ctx.future(() -> this.failedQuorums(quorums).thenCompose(failed -> {
+                if (!failed.isEmpty()) {
+                    ctx.status(503);
+                    ctx.json(failed);
+                    return CompletableFuture.completedFuture(null);
+                }
+                Map<String, CompletableFuture<ReadResponse>> resolved = new HashMap<>();
+                quorums.forEach((key, quorum) -> resolved.put(key, this.resolveRead(key, quorum.future().join())));
+                return CompletableFuture.allOf(resolved.values().toArray(CompletableFuture[]::new)).thenAccept(ignored -> {
+                    HashMap<String, String> result = new HashMap<>();
+                    List<String> unavailable = new ArrayList<>();
+                    long now = System.currentTimeMillis();
+                    resolved.forEach((key, newest) -> {
+                        ReadResponse response = newest.join();
+                        if (response == null) {
+                            unavailable.add(key);
+                        } else if (response.statusCode() == 200 && Versioned.live(response.stored(), now)) {
+                            result.put(key, response.value());
+                        }
+                    });
+                    if (!unavailable.isEmpty()) {
+                        ctx.status(503);
+                        ctx.json(unavailable);
+                        return;
+                    }
+                    ctx.status(200);
+                    ctx.json(result);
+                });
+            }));
+        };
+    }
+
+    // Sends each replica its batch of keys to read with MULTI_GET or MULTI_GET_DIGEST
+    private void multiGetBatches(Map<String, List<String>> batches, byte op, Map<String, Quorum<ReadResponse>> quorums,
+                                 Map<String, String[]> remoteReplicas, Map<String, AtomicInteger> steps) {
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            String replica = batch.getKey();
+            List<String> batchKeys = batch.getValue();
+            List<byte[]> keyBytes = batchKeys.stream().map(key -> key.getBytes(StandardCharsets.UTF_8)).toList();
+            this.replicaCall(replica, op, Rpc.encodeList(keyBytes)).whenComplete((response, e) -> {
+                if (e == null && response.code() == Rpc.OK) {
+                    List<byte[]> values = Rpc.decodeList(response.payload());
+                    for (int i = 0; i < batchKeys.size(); i++) {
+                        quorums.get(batchKeys.get(i)).success(op == Rpc.MULTI_GET
+                                ? ReadResponse.ofStored(replica, keyBytes.get(i), values.get(i))
+                                : ReadResponse.ofDigest(replica, values.get(i)));
+                    }
+                    return;
+                }
+                System.err.printf("Replica %s did not answer a batch of %d keys\n", replica, batchKeys.size());
+                for (String key : batchKeys) {
+                    quorums.get(key).failure();
+                    this.recursiveGet(quorums.get(key), key, remoteReplicas.get(key), steps.get(key),
+                            op == Rpc.MULTI_GET ? Rpc.GET : Rpc.GET_DIGEST);
+                }
+            });
+        }
+    }
+
+    // POST /db/_mput with a JSON object of key-value pairs. Each replica receives its share of the pairs
+    // as one POST /keys, applied as a single WriteBatch, and every key still waits for its own W quorum.
+    private Handler handleClientMultiPut() {
+        return ctx -> {
+            HashMap<String, String> data = this.objectMapper.readValue(ctx.body(), new TypeReference<>() {});
+            int writeQuorum = this.requestQuorum(ctx, Config.WRITE_QUORUM);
+            long version = this.db.nextVersion();
+
+            Map<String, Quorum<ReplicaResponse>> quorums = new HashMap<>();
+            Map<String, List<String>> batches = new HashMap<>();
+            List<byte[]> localKeys = new ArrayList<>();
+            List<byte[]> localValues = new ArrayList<>();
+            List<String> localKeyNames = new ArrayList<>();
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                String[] preferenceList = this.calculatePreferenceList(entry.getKey());
+                quorums.put(entry.getKey(), replicaQuorum(writeQuorum, preferenceList));
+                for (String nodeAddress : preferenceList) {
+                    if (nodeAddress.equals(this.address)) {
+                        localKeyNames.add(entry.getKey());
+                        localKeys.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                        localValues.add(Versioned.encode(version, entry.getValue().getBytes(StandardCharsets.UTF_8)));
+                    } else {
+                        batches.computeIfAbsent(nodeAddress, node -> new ArrayList<>()).add(entry.getKey());
+                    }
+                }
+            }
+
+            for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+                List<String> batchKeys = batch.getValue();
+                List<byte[]> pairs = new ArrayList<>(batchKeys.size() * 2);
+                List<byte[]> batchKeyBytes = new ArrayList<>(batchKeys.size());
+                List<byte[]> batchValues = new ArrayList<>(batchKeys.size());
+                for (String key : batchKeys) {
+                    batchKeyBytes.add(key.getBytes(StandardCharsets.UTF_8));
+                    batchValues.add(Versioned.encode(version, data.get(key).getBytes(StandardCharsets.UTF_8)));
+                    pairs.add(batchKeyBytes.get(batchKeyBytes.size() - 1));
+                    pairs.add(batchValues.get(batchValues.size() - 1));
+                }
+                this.hintedWrite(batch.getKey(), this.replicaCall(batch.getKey(), Rpc.MULTI_PUT, Rpc.encodeList(pairs)),
+                        response -> response.code() == Rpc.OK, Rpc.PUT, batchKeyBytes, batchValues).thenAccept(response -> {
+                    boolean acknowledged = response.written();
+                    if (!acknowledged) {
+                        System.err.printf("Replica %s did not acknowledge a batch of %d keys\n",
+                                batch.getKey(), batchKeys.size());
+                    }
+                    for (String key : batchKeys) {
+                        if (acknowledged) {
+                            quorums.get(key).success(new ReplicaResponse(200));
+                        } else {
+                            quorums.get(key).failure();
+                        }
+                    }
+                });
+            }
+            if (!localKeys.isEmpty()) {
+                boolean written = this.db.postBatch(localKeys, localValues);
+                for (String key : localKeyNames) {
+                    if (written) {
+                        quorums.get(key).success(new ReplicaResponse(200));
+                    } else {
+                        quorums.get(key).failure();
+                    }
+                }
+            }
+
+            ctx.future(() -> this.failedQuorums(quorums).thenAccept(failed -> {
+                if (failed.isEmpty()) {
+                    ctx.status(200);
+                } else {
+                    ctx.status(503);
+                    ctx.json(failed);
+                }
+            }));
+        };
+    }
+
     private Handler handleNodeDelete() {
         return ctx -> {
             String address = ctx.body();
             long id = this.calculateID(address);
-            this.deleteNode(id);
+            this.removeMember(id);
         };
     }
 
     private Handler handleNodesGet() {
         try {
             return ctx -> {
-                String jsonString = objectMapper.writeValueAsString(this.nodeIdToAddress);
-                ctx.header("Last-Modified", String.valueOf(this.nodesUpdatedTime));
+                String jsonString;
+                this.membershipLock.lock();
+                try {
+                    jsonString = objectMapper.writeValueAsString(this.membership.all());
+                } finally {
+                    this.membershipLock.unlock();
+                }
                 ctx.status(200);
                 ctx.result(jsonString);
             };
@@ -175,15 +1103,38 @@ public class Node extends ClusterMember {
         }
     }
 
+    // Refuses membership updates from a node that hashes with a different partitioner, so it never
+    // joins this node's ring
+    private void checkPartitioner(Context ctx) {
+        String partitioner = peerPartitioner(ctx.header(PARTITIONER_HEADER));
+        if (!partitioner.equals(this.partitioner.name())) {
+            throw new ConflictResponse(String.format("This node uses the %s partitioner, not %s",
+                    this.partitioner.name(), partitioner));
+        }
+    }
+
     private Handler handleAllNodesPost() {
         return ctx -> {
-            String lastModifiedHeader = ctx.header("Last-Modified");
-            String jsonString = ctx.body();
-            if (lastModifiedHeader != null) {
-                long lastModified = Long.parseLong(lastModifiedHeader);
-                this.updateMembership(jsonString, lastModified);
+            this.checkPartitioner(ctx);
+            this.mergeMembers(objectMapper.readValue(this.requestBody(ctx), new TypeReference<Map<Long, Membership.Member>>() {}));
+            ctx.status(200);
+        };
+    }
+
+    // Answers a gossip partner's digest with the entries this node has newer and the ids it wants back
+    private Handler handleNodesDigest() {
+        return ctx -> {
+            this.checkPartitioner(ctx);
+            Map<Long, long[]> digest = objectMapper.readValue(this.requestBody(ctx), new TypeReference<>() {});
+            Membership.Delta delta;
+            this.membershipLock.lock();
+            try {
+                delta = new Membership.Delta(this.membership.newerThan(digest), this.membership.olderThan(digest));
+            } finally {
+                this.membershipLock.unlock();
             }
             ctx.status(200);
+            this.resultCompressed(ctx, objectMapper.writeValueAsBytes(delta), "gossip");
         };
     }
 
@@ -198,24 +1149,27 @@ public class Node extends ClusterMember {
                     .uri(new URI(String.format("http://%s/nodes", address)))
                     .GET()
                     .build();
-            HttpResponse<String> response = this.httpClient
-                    .send(getNodesRequest, HttpResponse.BodyHandlers.ofString());
-            String responseJson = response.body();
-            synchronized (this) {
-                this.updateMembership(responseJson, 0);
-                this.nodeIdToAddress.put(this.id, this.address);
-                this.nodes.add(this.id);
+            HttpResponse<String> response = this.peerSend(address, "/nodes", getNodesRequest, HttpResponse.BodyHandlers.ofString());
+            if (!this.samePartitioner(response)) {
+                throw new ConflictResponse(String.format("%s uses the %s partitioner, not %s", address,
+                        peerPartitioner(response.headers().firstValue(PARTITIONER_HEADER).orElse(null)), this.partitioner.name()));
             }
+            this.mergeMembers(objectMapper.readValue(response.body(), new TypeReference<Map<Long, Membership.Member>>() {}));
             this.rebalanceOnAdd();
         };
     }
 
     private Handler handleKeysDelete() {
         return ctx -> {
+            String lowerBound = ctx.queryParam("lower");
             String upperBound = ctx.queryParam("upper");
-            if (upperBound != null) {
+            if (lowerBound != null && upperBound != null) {
+                this.db.boundDelete(Long.parseLong(lowerBound), Long.parseLong(upperBound));
+            } else if (upperBound != null) {
                 this.db.upperBoundDelete(Long.parseLong(upperBound));
             }
+            // A joining node took the range over; this node may not have heard about the join yet
+            this.rangesMovedTime = Instant.now().toEpochMilli();
             ctx.status(200);
         };
     }
@@ -240,16 +1194,68 @@ public class Node extends ClusterMember {
         };
     }
 
+    // Streams a token range as HandoffStream frames straight from a RocksDB iterator, so the range is
+    // never held in memory
+    private Handler handleKeysStream() {
+        return ctx -> {
+            long lowerBound = Long.parseLong(ctx.queryParam("lower"));
+            long upperBound = Long.parseLong(ctx.queryParam("upper"));
+            String after = ctx.queryParam("after");
+            ctx.status(200);
+            ctx.contentType("application/octet-stream");
+            OutputStream body = ctx.outputStream();
+            boolean compressed = this.compression.acceptsEncoding(ctx.header("Accept-Encoding"));
+            if (compressed) {
+                ctx.header("Content-Encoding", WireCompression.ENCODING);
+                body = this.compression.compressStream(body, "stream");
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body, 1 << 16));
+            this.db.scanRange(lowerBound, upperBound, after,
+                    (key, value) -> HandoffStream.writeEntry(out, key, value));
+            HandoffStream.writeEnd(out);
+            if (compressed) {
+                // Closing ends the compressed frame
+                out.close();
+            }
+        };
+    }
+
+    // Sends a token range as an SST file for the requester to ingest, or 204 if the range is empty. The
+    // file is staged in the RocksDB directory and deleted once sent.
+    private Handler handleKeysSnapshot() {
+        return ctx -> {
+            long lowerBound = Long.parseLong(ctx.queryParam("lower"));
+            long upperBound = Long.parseLong(ctx.queryParam("upper"));
+            Path file = Files.createTempFile(this.db.directory(), "export-", ".sst");
+            try {
+                if (this.db.exportRange(lowerBound, upperBound, file) == 0) {
+                    ctx.status(204);
+                    return;
+                }
+                ctx.status(200);
+                ctx.contentType("application/octet-stream");
+                ctx.header("Content-Length", String.valueOf(Files.size(file)));
+                Files.copy(file, ctx.outputStream());
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        };
+    }
+
     private Handler handleKeysPost() {
         return ctx -> {
             try {
                 String jsonString = ctx.body();
                 HashMap<String, String> data = this.objectMapper.readValue(jsonString,
                         new TypeReference<>() {});
+                long version = this.db.nextVersion();
+                List<byte[]> keys = new ArrayList<>(data.size());
+                List<byte[]> values = new ArrayList<>(data.size());
                 for (String key : data.keySet()) {
-                    this.db.post(key, data.get(key));
+                    keys.add(key.getBytes(StandardCharsets.UTF_8));
+                    values.add(Versioned.encode(version, data.get(key).getBytes(StandardCharsets.UTF_8)));
                 }
-                ctx.status(200);
+                ctx.status(this.db.postBatch(keys, values) ? 200 : 500);
             } catch (Exception e) {
                 e.printStackTrace();
                 ctx.status(500);
@@ -257,16 +1263,36 @@ public class Node extends ClusterMember {
         };
     }
 
+    // Reads a JSON array of keys with one multiGet and answers with the ones that were found
+    private Handler handleKeysMultiGet() {
+        return ctx -> {
+            List<String> keys = this.objectMapper.readValue(ctx.body(), new TypeReference<>() {});
+            List<byte[]> values = this.db.multiGet(keys);
+            if (values == null) {
+                ctx.status(500);
+                return;
+            }
+            HashMap<String, String> result = new HashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                if (values.get(i) != null) {
+                    result.put(keys.get(i), new String(values.get(i), StandardCharsets.UTF_8));
+                }
+            }
+            ctx.status(200);
+            ctx.result(this.objectMapper.writeValueAsString(result));
+        };
+    }
+
     private Handler handleDirectGet() {
         try {
             return ctx -> {
                 String key = ctx.pathParam("key");
-                final byte[] result = this.db.get(key);
-                if (result == null) {
+                final byte[] stored = this.db.getStored(key);
+                if (!Versioned.live(stored, System.currentTimeMillis())) {
                     ctx.status(404);
                 } else {
                     ctx.status(200);
-                    ctx.result(new String(result));
+                    resultValue(ctx, stored);
                 }
             };
         } catch (Exception e) {
@@ -281,13 +1307,12 @@ public class Node extends ClusterMember {
         try {
             return ctx -> {
                 String key = ctx.pathParam("key");
-                String value = ctx.body();
-                final byte[] result = this.db.post(key, value);
-                if (result == null) {
+                byte[] stored = readValue(ctx, this.db.nextVersion());
+                if (!this.db.postVersioned(key, stored)) {
                     ctx.status(500);
                 } else {
                     ctx.status(200);
-                    ctx.result(new String(result));
+                    resultValue(ctx, stored);
                 }
             };
         } catch (Exception e) {
@@ -302,12 +1327,12 @@ public class Node extends ClusterMember {
         try {
             return ctx -> {
                 String key = ctx.pathParam("key");
-                final byte[] result = this.db.delete(key);
+                final byte[] result = this.db.delete(key, Versioned.tombstone(this.db.nextVersion(), System.currentTimeMillis()));
                 if (result == null) {
                     ctx.status(404);
                 } else {
                     ctx.status(200);
-                    ctx.result(new String(result));
+                    ctx.result(result);
                 }
             };
         } catch (Exception e) {
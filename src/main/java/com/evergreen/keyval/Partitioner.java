@@ -0,0 +1,31 @@
+package com.evergreen.keyval;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes keys, and the addresses that place nodes on the ring, to 64-bit ring tokens. Every node in a
+ * cluster must use the same partitioner: tokens are part of every stored key and decide which nodes
+ * replicate it. A node records its partitioner with its data ({@link DBClient}) and sends it on gossip
+ * ({@link ClusterMember#PARTITIONER_HEADER}), so a node configured differently is refused rather than
+ * silently misplacing keys.
+ *
+ * Implementations are stateless and safe to share between threads.
+ */
+public interface Partitioner {
+
+    long token(byte[] key);
+
+    default long token(String key) {
+        return this.token(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The name recorded with a node's data and sent to peers, e.g. "MURMUR3"
+    String name();
+
+    static Partitioner of(Config.PartitionerType type) {
+        return switch (type) {
+            case MURMUR3 -> Murmur3Partitioner.INSTANCE;
+            case MD5 -> Md5Partitioner.INSTANCE;
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package com.evergreen.keyval;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Collects replica responses and completes as soon as {@code required} of them succeed, or with
+ * {@code null} once enough have failed that the quorum can no longer be reached. Responses that
+ * arrive after completion are ignored, so the slower replicas finish in the background. A quorum
+ * larger than the number of replicas fails straight away instead of being reduced to fit.
+ */
+public class Quorum<T> {
+
+    private final int required;
+    private final int total;
+    private final List<T> responses = new ArrayList<>();
+    private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+    private int failures;
+
+    public Quorum(int required, int total) {
+        if (required < 1) {
+            throw new IllegalArgumentException(String.format("Invalid quorum %d", required));
+        }
+        this.required = required;
+        this.total = total;
+        if (total < required) {
+            this.result.complete(null);
+        }
+    }
+
+    public synchronized void success(T response) {
+        if (this.result.isDone()) {
+            return;
+        }
+        this.responses.add(response);
+        if (this.responses.size() >= this.required) {
+            this.result.complete(List.copyOf(this.responses));
+        }
+    }
+
+    public synchronized void failure() {
+        if (this.result.isDone()) {
+            return;
+        }
+        this.failures++;
+        if (this.total - this.failures < this.required) {
+            this.result.complete(null);
+        }
+    }
+
+    public int required() {
+        return this.required;
+    }
+
+    public CompletableFuture<List<T>> future() {
+        return this.result;
+    }
+}
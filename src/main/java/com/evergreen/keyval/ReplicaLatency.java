@@ -0,0 +1,141 @@
+package com.evergreen.keyval;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coordinator-side view of how fast each peer answers. Every replica call is timed; per peer it keeps
+ * an exponentially weighted moving average of the latency, the number of calls still outstanding, and
+ * a window of recent read latencies. Reads go to the peer with the lowest
+ * {@code averageMs * (outstanding + 1)} first, so a peer that is slow or already busy is asked last,
+ * and a read that has not been answered by the peer's {@code keyval.hedgePercentile} latency is hedged
+ * to the next replica.
+ */
+public class ReplicaLatency {
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final int WINDOW_SIZE = 256;
+    // Reads a peer must have answered before its own percentile is trusted as a hedge deadline
+    private static final int MIN_SAMPLES = 16;
+    // Recompute the percentile after this many new samples instead of on every read
+    private static final int PERCENTILE_REFRESH = 32;
+
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private Peer peer(String address) {
+        return this.peers.computeIfAbsent(address, ignored -> new Peer());
+    }
+
+    // Marks a call to the peer as outstanding and returns its start time
+    public long start(String address) {
+        this.peer(address).start();
+        return System.nanoTime();
+    }
+
+    // Records the end of a call; a failed call counts as at least twice the average, and only answered
+    // reads fill the percentile window
+    public void finish(String address, long startNanos, boolean answered, boolean read) {
+        this.peer(address).finish(System.nanoTime() - startNanos, answered, read);
+    }
+
+    // Copy of the replicas ordered fastest first; peers that were never timed go first so they get measured
+    public String[] fastestFirst(String[] replicas) {
+        // Scores are taken once up front since calls keep changing them while the sort runs
+        Map<String, Double> scores = new HashMap<>();
+        for (String address : replicas) {
+            Peer peer = this.peers.get(address);
+            scores.put(address, peer == null ? 0 : peer.score());
+        }
+        String[] ordered = replicas.clone();
+        Arrays.sort(ordered, Comparator.comparingDouble(scores::get));
+        return ordered;
+    }
+
+    // How long to wait on a read from the peer before hedging it to another replica
+    public long hedgeDelayMs(String address) {
+        Peer peer = this.peers.get(address);
+        long delayMs = peer == null ? -1 : peer.percentileMs();
+        if (delayMs < 0) {
+            return Config.HEDGE_MAX_DELAY_MS;
+        }
+        return Math.min(Math.max(delayMs, Config.HEDGE_MIN_DELAY_MS), Config.HEDGE_MAX_DELAY_MS);
+    }
+
+    public void forget(String address) {
+        this.peers.remove(address);
+    }
+
+    // {address: {averageMs, outstanding, hedgeDelayMs}} for every peer that has been called
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        this.peers.forEach((address, peer) -> stats.put(address, Map.of(
+                "averageMs", peer.averageMs(),
+                "outstanding", peer.outstanding(),
+                "hedgeDelayMs", this.hedgeDelayMs(address))));
+        return stats;
+    }
+
+    private static class Peer {
+        private final long[] window = new long[WINDOW_SIZE];
+        // Where the next sample goes, wrapping around the window, and how many of its slots are filled
+        private int cursor;
+        private int samples;
+        private int sinceRefresh;
+        private long percentileMs = -1;
+        private double averageMs;
+        private int outstanding;
+
+        synchronized void start() {
+            this.outstanding++;
+        }
+
+        synchronized void finish(long nanos, boolean answered, boolean read) {
+            this.outstanding--;
+            double ms = nanos / 1_000_000.0;
+            if (!answered) {
+                ms = Math.max(ms, 2 * this.averageMs);
+            }
+            this.averageMs = this.averageMs == 0 ? ms : this.averageMs + EWMA_WEIGHT * (ms - this.averageMs);
+            if (answered && read) {
+                this.window[this.cursor] = nanos;
+                this.cursor = (this.cursor + 1) % WINDOW_SIZE;
+                this.samples = Math.min(this.samples + 1, WINDOW_SIZE);
+                if (++this.sinceRefresh >= PERCENTILE_REFRESH || this.percentileMs < 0) {
+                    this.refreshPercentile();
+                }
+            }
+        }
+
+        private void refreshPercentile() {
+            int count = this.samples;
+            if (count < MIN_SAMPLES || Config.HEDGE_PERCENTILE <= 0) {
+                this.percentileMs = -1;
+                return;
+            }
+            long[] sorted = Arrays.copyOf(this.window, count);
+            Arrays.sort(sorted);
+            int rank = Math.min(count - 1, (int) Math.ceil(count * Config.HEDGE_PERCENTILE / 100.0) - 1);
+            this.percentileMs = sorted[Math.max(rank, 0)] / 1_000_000;
+            this.sinceRefresh = 0;
+        }
+
+        synchronized double score() {
+            return this.averageMs * (this.outstanding + 1);
+        }
+
+        synchronized long percentileMs() {
+            return this.percentileMs;
+        }
+
+        synchronized double averageMs() {
+            return this.averageMs;
+        }
+
+        synchronized int outstanding() {
+            return this.outstanding;
+        }
+    }
+}
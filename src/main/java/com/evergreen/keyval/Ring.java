@@ -0,0 +1,152 @@
+package com.evergreen.keyval;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable snapshot of the consistent hash ring. Tokens are kept in a sorted primitive array with a
+ * parallel array of indexes into the address table, so routing a key is a binary search with no
+ * boxing. A new snapshot is built whenever membership changes and published by swapping a volatile
+ * reference, which lets request handlers read it without locking.
+ *
+ * Each physical node owns {@code virtualNodes} tokens. The first token is the hash of the node's
+ * address (its node id); the others hash {@code address#i}.
+ */
+public class Ring {
+
+    private final long[] tokens;
+    private final int[] owners;
+    private final String[] addresses;
+
+    private Ring(long[] tokens, int[] owners, String[] addresses) {
+        this.tokens = tokens;
+        this.owners = owners;
+        this.addresses = addresses;
+    }
+
+    public static Ring build(Collection<String> nodeAddresses, int virtualNodes, ToLongFunction<String> hash) {
+        String[] addresses = nodeAddresses.stream()
+                .filter(address -> address != null && !address.isEmpty())
+                .collect(Collectors.toCollection(LinkedHashSet::new))
+                .toArray(new String[0]);
+        int tokensPerNode = Math.max(1, virtualNodes);
+        long[] unsortedTokens = new long[addresses.length * tokensPerNode];
+        int[] unsortedOwners = new int[unsortedTokens.length];
+        for (int i = 0; i < addresses.length; i++) {
+            for (int v = 0; v < tokensPerNode; v++) {
+                String tokenName = v == 0 ? addresses[i] : String.format("%s#%d", addresses[i], v);
+                unsortedTokens[i * tokensPerNode + v] = hash.applyAsLong(tokenName);
+                unsortedOwners[i * tokensPerNode + v] = i;
+            }
+        }
+
+        Integer[] order = IntStream.range(0, unsortedTokens.length).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingLong(i -> unsortedTokens[i]));
+        long[] tokens = new long[order.length];
+        int[] owners = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            tokens[i] = unsortedTokens[order[i]];
+            owners[i] = unsortedOwners[order[i]];
+        }
+        return new Ring(tokens, owners, addresses);
+    }
+
+    // A copy of this ring with every token of the given node removed
+    public Ring without(String address) {
+        int removed = this.indexOf(address);
+        if (removed < 0) {
+            return this;
+        }
+        String[] addresses = new String[this.addresses.length - 1];
+        for (int i = 0, j = 0; i < this.addresses.length; i++) {
+            if (i != removed) {
+                addresses[j++] = this.addresses[i];
+            }
+        }
+        int remaining = 0;
+        for (int owner : this.owners) {
+            if (owner != removed) {
+                remaining++;
+            }
+        }
+        long[] tokens = new long[remaining];
+        int[] owners = new int[remaining];
+        for (int i = 0, j = 0; i < this.tokens.length; i++) {
+            int owner = this.owners[i];
+            if (owner != removed) {
+                tokens[j] = this.tokens[i];
+                owners[j++] = owner > removed ? owner - 1 : owner;
+            }
+        }
+        return new Ring(tokens, owners, addresses);
+    }
+
+    // Number of physical nodes
+    public int size() {
+        return this.addresses.length;
+    }
+
+    public int tokenCount() {
+        return this.tokens.length;
+    }
+
+    public long token(int tokenIdx) {
+        return this.tokens[tokenIdx];
+    }
+
+    public String address(int nodeIdx) {
+        return this.addresses[nodeIdx];
+    }
+
+    public int indexOf(String address) {
+        for (int i = 0; i < this.addresses.length; i++) {
+            if (this.addresses[i].equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Index of the first token >= the given token, wrapping around to 0 past the end of the ring
+    public int tokenIndex(long token) {
+        int start = 0;
+        int end = this.tokens.length;
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            if (this.tokens[mid] < token) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start == this.tokens.length ? 0 : start;
+    }
+
+    // Walks clockwise from the token's position and returns the first n distinct physical nodes
+    public String[] preferenceList(long token, int n) {
+        int count = Math.min(n, this.addresses.length);
+        String[] preferenceList = new String[count];
+        int added = 0;
+        int tokenIdx = this.tokenIndex(token);
+        for (int step = 0; added < count && step < this.tokens.length; step++) {
+            String owner = this.addresses[this.owners[(tokenIdx + step) % this.tokens.length]];
+            boolean duplicate = false;
+            for (int i = 0; i < added; i++) {
+                // Addresses come from the same table, so identity is enough to spot a repeated node
+                if (preferenceList[i] == owner) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                preferenceList[added++] = owner;
+            }
+        }
+        return preferenceList;
+    }
+}
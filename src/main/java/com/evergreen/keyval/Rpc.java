@@ -0,0 +1,136 @@
+package com.evergreen.keyval;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames of the internal node-to-node protocol served by {@link RpcServer}. Every frame is
+ * {@code [int length][long requestId][byte code][payload]}, where code is the operation on requests
+ * and the status on responses, and its top two bits are flags. Connections are pipelined: any number
+ * of requests can be outstanding and responses come back in completion order, matched to their
+ * request by requestId. Keys travel as raw bytes and values encoded by {@link Versioned}.
+ */
+public class Rpc {
+
+    // Operations
+    public static final byte GET = 1;
+    public static final byte PUT = 2;
+    // [key, tombstone] -> OK with the live value it deleted, or NOT_FOUND if there was none
+    public static final byte DELETE = 3;
+    public static final byte MULTI_GET = 4;
+    public static final byte MULTI_PUT = 5;
+    // No longer sent or served: deletes are tombstones, written in batches by MULTI_PUT
+    public static final byte MULTI_DELETE = 6;
+    public static final byte MERKLE_HASHES = 7;
+    // Like GET and MULTI_GET, but answer with [long version][long digest] per key instead of the value
+    public static final byte GET_DIGEST = 8;
+    public static final byte MULTI_GET_DIGEST = 9;
+    // [long cursorId][long from][long to][int limit][after key] -> [long cursorId] followed by a list of
+    // key, value pairs; see Node's SCAN handler
+    public static final byte SCAN = 10;
+
+    private static final String[] NAMES = {null, "GET", "PUT", "DELETE", "MULTI_GET", "MULTI_PUT", "MULTI_DELETE",
+            "MERKLE_HASHES", "GET_DIGEST", "MULTI_GET_DIGEST", "SCAN"};
+
+    // Statuses
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte ERROR = 2;
+
+    // Flags on the code byte. COMPRESSED marks a payload compressed by WireCompression, and a request
+    // with ACCEPTS_COMPRESSED may be answered with one. Clients only set them for peers that advertise
+    // the same compression, so older peers never see them.
+    public static final byte COMPRESSED = (byte) 0x80;
+    public static final byte ACCEPTS_COMPRESSED = 0x40;
+    private static final byte FLAGS = COMPRESSED | ACCEPTS_COMPRESSED;
+
+    private static final int HEADER_LENGTH = 9;
+    private static final byte[] EMPTY = new byte[0];
+
+    public record Frame(long requestId, byte code, byte[] payload) {
+        public Frame reply(byte status, byte[] payload) {
+            return new Frame(this.requestId, status, payload == null ? EMPTY : payload);
+        }
+
+        public boolean has(byte flag) {
+            return (this.code & flag) != 0;
+        }
+
+        // The frame as its sender built it, with its payload decompressed and the flags cleared
+        public Frame decompressed(WireCompression compression) throws IOException {
+            if ((this.code & FLAGS) == 0) {
+                return this;
+            }
+            byte[] payload = this.has(COMPRESSED) ? compression.decompress(this.payload) : this.payload;
+            return new Frame(this.requestId, (byte) (this.code & ~FLAGS), payload);
+        }
+
+        // The frame with its payload compressed, if that is worthwhile, and any extra flags set
+        public Frame compressed(WireCompression compression, byte flags) {
+            byte[] compressed = compression.compress(this.payload, "rpc");
+            return compressed == null
+                    ? new Frame(this.requestId, (byte) (this.code | flags), this.payload)
+                    : new Frame(this.requestId, (byte) (this.code | flags | COMPRESSED), compressed);
+        }
+    }
+
+    // The operation's constant name, for logs and metrics
+    public static String name(byte op) {
+        return op > 0 && op < NAMES.length ? NAMES[op] : String.valueOf(op);
+    }
+
+    // Callers serialize writes to the same stream
+    public static void write(DataOutputStream out, Frame frame) throws IOException {
+        out.writeInt(HEADER_LENGTH + frame.payload().length);
+        out.writeLong(frame.requestId());
+        out.writeByte(frame.code());
+        out.write(frame.payload());
+    }
+
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        long requestId = in.readLong();
+        byte code = in.readByte();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(requestId, code, payload);
+    }
+
+    // Encodes [int count]([int length][bytes])*, with a length of -1 standing for null
+    public static byte[] encodeList(List<byte[]> items) {
+        int size = 4;
+        for (byte[] item : items) {
+            size += 4 + (item == null ? 0 : item.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).putInt(items.size());
+        for (byte[] item : items) {
+            if (item == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(item.length).put(item);
+            }
+        }
+        return buffer.array();
+    }
+
+    public static List<byte[]> decodeList(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int count = buffer.getInt();
+        List<byte[]> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            if (length < 0) {
+                items.add(null);
+            } else {
+                byte[] item = new byte[length];
+                buffer.get(item);
+                items.add(item);
+            }
+        }
+        return items;
+    }
+}
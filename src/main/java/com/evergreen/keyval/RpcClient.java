@@ -0,0 +1,164 @@
+package com.evergreen.keyval;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side of the {@link Rpc} transport. Keeps a small pool of persistent connections per peer
+ * and pipelines requests over them; a reader thread per connection completes the matching future
+ * when a response arrives. A broken connection fails its outstanding requests and is replaced on
+ * the next call.
+ */
+public class RpcClient {
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private final int connectionsPerPeer;
+    private final long requestTimeoutMs;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    // Runs the callbacks of completed calls, which may block on local storage or issue further calls
+    private final ExecutorService callbacks = Threads.executor("rpc-callback-");
+    private final WireCompression compression;
+
+    public RpcClient(int connectionsPerPeer, long requestTimeoutMs, WireCompression compression) {
+        this.connectionsPerPeer = Math.max(1, connectionsPerPeer);
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.compression = compression;
+    }
+
+    // Sends the request to the peer listening at host:port and completes with its response frame. With
+    // compress set, which callers only do for peers that advertise the same compression, the payload
+    // may be sent compressed and the response may come back compressed; either way the caller sees it
+    // decompressed.
+    public CompletableFuture<Rpc.Frame> call(String rpcAddress, byte op, byte[] payload, boolean compress) {
+        long requestId = this.nextRequestId.incrementAndGet();
+        String slot = String.format("%s#%d", rpcAddress, requestId % this.connectionsPerPeer);
+        Connection connection;
+        try {
+            connection = this.connection(slot, rpcAddress);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Rpc.Frame request = new Rpc.Frame(requestId, op, payload);
+        if (compress) {
+            request = request.compressed(this.compression, Rpc.ACCEPTS_COMPRESSED);
+        }
+        return connection.send(request);
+    }
+
+    // One pooled connection to a peer. Connecting holds only the slot's own lock, never a map bin, so
+    // a connect to a dead peer holds up neither calls to other peers nor, on virtual threads, a carrier.
+    private static class Slot {
+        private final String name;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Connection connection;
+
+        Slot(String name) {
+            this.name = name;
+        }
+    }
+
+    private Connection connection(String name, String rpcAddress) throws IOException {
+        Slot slot = this.slots.computeIfAbsent(name, Slot::new);
+        Connection connection = slot.connection;
+        if (connection != null && !connection.closed) {
+            return connection;
+        }
+        slot.lock.lock();
+        try {
+            connection = slot.connection;
+            if (connection == null || connection.closed) {
+                connection = new Connection(slot.name, rpcAddress);
+                slot.connection = connection;
+            }
+            return connection;
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    private class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Map<Long, CompletableFuture<Rpc.Frame>> pending = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        Connection(String slot, String rpcAddress) throws IOException {
+            int separator = rpcAddress.lastIndexOf(':');
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay(true);
+            this.socket.connect(new InetSocketAddress(rpcAddress.substring(0, separator),
+                    Integer.parseInt(rpcAddress.substring(separator + 1))), CONNECT_TIMEOUT_MS);
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+            Threads.start(String.format("rpc-client-%s", slot), this::read);
+        }
+
+        CompletableFuture<Rpc.Frame> send(Rpc.Frame request) {
+            CompletableFuture<Rpc.Frame> response = new CompletableFuture<>();
+            this.pending.put(request.requestId(), response);
+            this.writeLock.lock();
+            try {
+                Rpc.write(this.out, request);
+                this.out.flush();
+            } catch (IOException e) {
+                this.close(e);
+            } finally {
+                this.writeLock.unlock();
+            }
+            return response
+                    .orTimeout(RpcClient.this.requestTimeoutMs, TimeUnit.MILLISECONDS)
+                    .whenComplete((frame, e) -> this.pending.remove(request.requestId()));
+        }
+
+        private void read() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                while (true) {
+                    Rpc.Frame response = Rpc.read(in);
+                    CompletableFuture<Rpc.Frame> future = this.pending.remove(response.requestId());
+                    if (future != null) {
+                        // Callbacks may issue further calls, so they must not run on the reader thread,
+                        // and decompressing a large payload should not hold up the responses behind it
+                        RpcClient.this.callbacks.execute(() -> {
+                            try {
+                                future.complete(response.decompressed(RpcClient.this.compression));
+                            } catch (IOException e) {
+                                future.completeExceptionally(e);
+                            }
+                        });
+                    }
+                }
+            } catch (IOException e) {
+                this.close(e);
+            }
+        }
+
+        private void close(IOException cause) {
+            if (this.closed) {
+                return;
+            }
+            // The slot sees the flag and connects again on its next call
+            this.closed = true;
+            try {
+                this.socket.close();
+            } catch (IOException ignored) {
+            }
+            this.pending.values().forEach(future -> future.completeExceptionally(cause));
+            this.pending.clear();
+        }
+    }
+}
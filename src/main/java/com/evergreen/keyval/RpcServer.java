@@ -0,0 +1,92 @@
+package com.evergreen.keyval;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accepts persistent connections from peers and serves pipelined {@link Rpc} frames. Each connection
+ * has a reader thread that hands requests to a worker pool, so a slow request does not hold up the
+ * ones behind it; responses are written back as they complete, compressed if the request allows it.
+ */
+public class RpcServer {
+
+    public interface RequestHandler {
+        Rpc.Frame handle(Rpc.Frame request);
+    }
+
+    private final ServerSocket serverSocket;
+    private final RequestHandler handler;
+    private final ExecutorService workers = Threads.executor("rpc-worker-");
+    private final WireCompression compression;
+
+    public RpcServer(int port, RequestHandler handler, WireCompression compression) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.handler = handler;
+        this.compression = compression;
+        Threads.start(String.format("rpc-acceptor-%d", port), this::accept);
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Threads.start(String.format("rpc-server-%s", socket.getRemoteSocketAddress()), () -> this.serve(socket));
+            } catch (IOException e) {
+                if (!this.serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // A lock rather than synchronized, so a virtual thread blocked on the socket does not pin its carrier
+            ReentrantLock writeLock = new ReentrantLock();
+            while (true) {
+                Rpc.Frame request = Rpc.read(in);
+                this.workers.execute(() -> {
+                    Rpc.Frame response;
+                    try {
+                        response = this.handler.handle(request.decompressed(this.compression));
+                        if (request.has(Rpc.ACCEPTS_COMPRESSED)) {
+                            response = response.compressed(this.compression, (byte) 0);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        response = request.reply(Rpc.ERROR, null);
+                    }
+                    writeLock.lock();
+                    try {
+                        Rpc.write(out, response);
+                        out.flush();
+                    } catch (IOException e) {
+                        // The peer is gone; its reader loop closes the connection
+                    } finally {
+                        writeLock.unlock();
+                    }
+                });
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+        } catch (IOException e) {
+            System.err.printf("RPC connection from %s failed: %s\n", socket.getRemoteSocketAddress(), e.getMessage());
+        }
+    }
+
+    public void close() throws IOException {
+        this.serverSocket.close();
+        this.workers.shutdown();
+    }
+}
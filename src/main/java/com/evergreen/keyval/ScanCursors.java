@@ -0,0 +1,55 @@
+package com.evergreen.keyval;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The scan cursors a replica holds open between pages of a client scan, by id. A cursor is taken out
+ * while a page is read from it and put back afterwards, so each is used by one request at a time and
+ * closing idle cursors never races a read. Cursors left idle for keyval.scanCursorIdleMs are closed,
+ * releasing their iterator and the data it pins.
+ */
+public class ScanCursors {
+
+    private record Parked(DBClient.ScanCursor cursor, long parkedMillis) {}
+
+    private final Map<Long, Parked> parked = new ConcurrentHashMap<>();
+    // Ids start at a random point, so a coordinator holding an id from before a restart cannot pick up
+    // another scan's cursor
+    private final AtomicLong nextId = new AtomicLong(ThreadLocalRandom.current().nextLong());
+    private final long idleMs;
+
+    public ScanCursors(long idleMs) {
+        this.idleMs = idleMs;
+        long interval = Math.max(1000, idleMs / 4);
+        Threads.scheduler("scan-cursors-").scheduleWithFixedDelay(this::closeIdle, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Takes the cursor out for the next page, or returns null if it was closed or never existed
+    public DBClient.ScanCursor take(long id) {
+        Parked entry = this.parked.remove(id);
+        return entry == null ? null : entry.cursor();
+    }
+
+    // Puts a cursor back after a page under its id, or under a new one if id is 0; returns the id
+    public long park(long id, DBClient.ScanCursor cursor) {
+        long parkedId = id;
+        while (parkedId == 0) {
+            parkedId = this.nextId.incrementAndGet();
+        }
+        this.parked.put(parkedId, new Parked(cursor, System.currentTimeMillis()));
+        return parkedId;
+    }
+
+    private void closeIdle() {
+        long expiry = System.currentTimeMillis() - this.idleMs;
+        for (Map.Entry<Long, Parked> entry : this.parked.entrySet()) {
+            if (entry.getValue().parkedMillis() < expiry && this.parked.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().cursor().close();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.evergreen.keyval;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Where a client scan continues, handed to the client as an opaque cursor. A scan walks the ring in
+ * token order one slice at a time, a slice being the tokens [from, to] of one ring range, which are
+ * read from one of the range's replicas. The position names the replica and its cursor id while a
+ * slice is being paged through, and the last key returned so that another replica, or a new cursor
+ * if the old one expired, can pick up after it.
+ */
+public record ScanPosition(long from, long to, String replica, long cursorId, byte[] after) {
+
+    // The start of the slice holding the token, in the given ring
+    public static ScanPosition slice(Ring ring, long from) {
+        long upperBound = ring.token(ring.tokenIndex(from));
+        // Past the last token the range wraps, and the slice ends with the ring
+        return new ScanPosition(from, upperBound >= from ? upperBound : Long.MAX_VALUE, null, 0, null);
+    }
+
+    // The position after a page read from the replica, or null once the whole ring has been read
+    public ScanPosition next(Ring ring, String pageReplica, long pageCursorId, byte[] lastKey) {
+        if (pageCursorId != 0) {
+            return new ScanPosition(this.from, this.to, pageReplica, pageCursorId, lastKey == null ? this.after : lastKey);
+        }
+        return this.to == Long.MAX_VALUE ? null : slice(ring, this.to + 1);
+    }
+
+    public String encode() {
+        byte[] replicaBytes = this.replica == null ? new byte[0] : this.replica.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(32 + replicaBytes.length + (this.after == null ? 0 : this.after.length))
+                .putLong(this.from)
+                .putLong(this.to)
+                .putLong(this.cursorId)
+                .putInt(replicaBytes.length)
+                .put(replicaBytes);
+        if (this.after == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(this.after.length).put(this.after);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    public static ScanPosition decode(String cursor) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));
+            long from = buffer.getLong();
+            long to = buffer.getLong();
+            long cursorId = buffer.getLong();
+            byte[] replicaBytes = new byte[buffer.getInt()];
+            buffer.get(replicaBytes);
+            int afterLength = buffer.getInt();
+            byte[] after = null;
+            if (afterLength >= 0) {
+                after = new byte[afterLength];
+                buffer.get(after);
+            }
+            if (from > to || buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Invalid scan cursor");
+            }
+            return new ScanPosition(from, to, replicaBytes.length == 0 ? null : new String(replicaBytes, StandardCharsets.UTF_8),
+                    cursorId, after);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Invalid scan cursor", e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.evergreen.keyval;
+
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.RateLimiter;
+import org.rocksdb.Statistics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The RocksDB options a node opens its database with, built from the storage settings in
+ * {@link Config}. The data column family gets bloom filters, the configured memtables, compaction
+ * style and per-level compression; the internal column families (hints, metadata and legacy layouts)
+ * are small and written rarely, so they get small memtables and no filters. All of them share one
+ * block cache, so its size bounds the memory reads use no matter how many column families there are.
+ *
+ * The options hold native objects that RocksDB keeps using after open, so DBClient keeps its profile
+ * for as long as the database is open.
+ */
+public class StorageProfile {
+
+    private static final long MB = 1024L * 1024L;
+    private static final int INTERNAL_MEMTABLE_MB = 8;
+    private static final String DEFAULT_COMPRESSION = "none,none,lz4,lz4,lz4,lz4,lz4hc";
+
+    private final LRUCache blockCache;
+    private final BloomFilter bloomFilter;
+    private final RateLimiter rateLimiter;
+    private final DBOptions dbOptions;
+    private final ColumnFamilyOptions dataOptions;
+    private final ColumnFamilyOptions internalOptions;
+    private final List<CompressionType> compression;
+
+    public StorageProfile(Statistics statistics) {
+        this.blockCache = new LRUCache(Config.BLOCK_CACHE_MB * MB);
+        this.bloomFilter = Config.BLOOM_BITS_PER_KEY > 0 ? new BloomFilter(Config.BLOOM_BITS_PER_KEY, false) : null;
+        this.rateLimiter = Config.COMPACTION_RATE_MB_PER_SEC > 0 ? new RateLimiter(Config.COMPACTION_RATE_MB_PER_SEC * MB) : null;
+        this.compression = compressionPerLevel(Config.COMPRESSION);
+
+        this.dbOptions = new DBOptions()
+                .setCreateIfMissing(true)
+                .setCreateMissingColumnFamilies(true)
+                .setStatistics(statistics)
+                .setMaxBackgroundJobs(Config.BACKGROUND_JOBS)
+                // Syncs SST files as they are written rather than all at once when they are finished
+                .setBytesPerSync(MB);
+        if (this.rateLimiter != null) {
+            this.dbOptions.setRateLimiter(this.rateLimiter);
+        }
+
+        BlockBasedTableConfig dataTable = new BlockBasedTableConfig()
+                .setBlockCache(this.blockCache)
+                // Filter and index blocks count against the cache too, with level 0's pinned since
+                // every read checks them
+                .setCacheIndexAndFilterBlocks(true)
+                .setPinL0FilterAndIndexBlocksInCache(true);
+        if (this.bloomFilter != null) {
+            dataTable.setFilterPolicy(this.bloomFilter);
+        }
+        this.dataOptions = new ColumnFamilyOptions()
+                .setTableFormatConfig(dataTable)
+                .setWriteBufferSize(Config.MEMTABLE_MB * MB)
+                .setMaxWriteBufferNumber(Config.MAX_MEMTABLES)
+                .setCompressionPerLevel(this.compression);
+        if (Config.COMPACTION == Config.Compaction.UNIVERSAL) {
+            this.dataOptions.setCompactionStyle(CompactionStyle.UNIVERSAL);
+        } else {
+            this.dataOptions.setCompactionStyle(CompactionStyle.LEVEL)
+                    .setLevelCompactionDynamicLevelBytes(true);
+        }
+
+        this.internalOptions = new ColumnFamilyOptions()
+                .setTableFormatConfig(new BlockBasedTableConfig().setBlockCache(this.blockCache))
+                .setWriteBufferSize(Math.min(Config.MEMTABLE_MB, INTERNAL_MEMTABLE_MB) * MB);
+    }
+
+    // Parses e.g. "none,lz4,lz4hc"; RocksDB applies the last entry to every level past the list. ZSTD is
+    // not offered: the RocksDB 6.6 JNI build crashes compressing with it under a block-based table config.
+    private static List<CompressionType> compressionPerLevel(String levels) {
+        List<CompressionType> types = new ArrayList<>();
+        for (String level : levels.split(",")) {
+            CompressionType type = switch (level.trim().toLowerCase()) {
+                case "none" -> CompressionType.NO_COMPRESSION;
+                case "snappy" -> CompressionType.SNAPPY_COMPRESSION;
+                case "zlib" -> CompressionType.ZLIB_COMPRESSION;
+                case "bzip2" -> CompressionType.BZLIB2_COMPRESSION;
+                case "lz4" -> CompressionType.LZ4_COMPRESSION;
+                case "lz4hc" -> CompressionType.LZ4HC_COMPRESSION;
+                default -> null;
+            };
+            if (type == null) {
+                System.err.printf("Ignoring invalid value %s for keyval.compression\n", levels);
+                return compressionPerLevel(DEFAULT_COMPRESSION);
+            }
+            types.add(type);
+        }
+        return types;
+    }
+
+    public DBOptions dbOptions() {
+        return this.dbOptions;
+    }
+
+    public ColumnFamilyOptions dataOptions() {
+        return this.dataOptions;
+    }
+
+    public ColumnFamilyOptions internalOptions() {
+        return this.internalOptions;
+    }
+
+    // Options for SST files built outside the database, like range snapshots, so that once ingested
+    // they have the same filters and blocks as flushed files. They land in the last level, so they
+    // are compressed like it.
+    public Options sstFileOptions() {
+        return new Options(this.dbOptions, this.dataOptions)
+                .setCompressionType(this.compression.get(this.compression.size() - 1));
+    }
+}
@@ -0,0 +1,42 @@
+package com.evergreen.keyval;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that do the node's blocking work: RPC connection readers and workers, replica
+ * callbacks, gossip, hint replay and anti-entropy. With {@code keyval.virtualThreads} set they are
+ * virtual threads, so a node can park thousands of blocked replica calls without running out of
+ * platform threads; otherwise they are daemon platform threads.
+ */
+public class Threads {
+
+    private static ThreadFactory factory(String name) {
+        if (Config.VIRTUAL_THREADS) {
+            return Thread.ofVirtual().name(name, 0).factory();
+        }
+        return Thread.ofPlatform().name(name, 0).daemon(true).factory();
+    }
+
+    // Runs each task on its own virtual thread, or on a cached pool of platform threads
+    public static ExecutorService executor(String name) {
+        if (Config.VIRTUAL_THREADS) {
+            return Executors.newThreadPerTaskExecutor(factory(name));
+        }
+        return Executors.newCachedThreadPool(factory(name));
+    }
+
+    // Runs periodic tasks one at a time, so a slow run delays the next one rather than overlapping it
+    public static ScheduledExecutorService scheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(factory(name));
+    }
+
+    public static Thread start(String name, Runnable task) {
+        if (Config.VIRTUAL_THREADS) {
+            return Thread.ofVirtual().name(name).start(task);
+        }
+        return Thread.ofPlatform().name(name).daemon(true).start(task);
+    }
+}
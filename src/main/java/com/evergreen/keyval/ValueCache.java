@@ -0,0 +1,403 @@
+package com.evergreen.keyval;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded cache of stored values, as encoded by {@link Versioned}, in front of RocksDB reads. Entries
+ * are weighed by their size in bytes and evicted with W-TinyLFU: new entries enter a small LRU window,
+ * and an entry pushed out of the window only displaces the least recently used entry of the main space
+ * if a count-min sketch of recent accesses says it is read more often. The main space is a segmented
+ * LRU, so entries read again while on probation move to a protected segment that one-off scans cannot
+ * flush.
+ *
+ * Writes go through the cache: DBClient calls {@link #write} once a write is committed, which updates
+ * or drops the cached copy. A reader that missed fills the cache only if no write to the key's stripe
+ * was committed since it took its {@link #stamp}, so a read that raced a write cannot cache the
+ * overwritten value.
+ *
+ * Reads take no lock: they look the key up in a concurrent map and record the access in one of
+ * several small ring buffers, picked by thread. Like Caffeine's read buffers these are lossy, so an
+ * access is dropped rather than waited on when its buffer is full or contended. Whichever reader fills
+ * a buffer drains all of them under the policy lock, if it is free, replaying the accesses into the LRU
+ * lists and the sketch in one batch. Fills, writes and eviction take the policy lock and drain first.
+ */
+public class ValueCache {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int STAMP_STRIPES = 256;
+    private static final int READ_BUFFERS = 16;
+    private static final int READ_BUFFER_SIZE = 64;
+    // Rough per-entry overhead of the node, map entry and key object, in bytes
+    private static final int ENTRY_OVERHEAD = 96;
+
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+
+    private static class Entry {
+        final String key;
+        // Read without the policy lock; everything else is only touched under it
+        volatile byte[] stored;
+        long weight;
+        int queue;
+        boolean removed;
+        Entry prev;
+        Entry next;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // Circular LRU lists with a sentinel each, least recently used first
+    private final Entry[] queues = new Entry[3];
+    private final long[] queueBytes = new long[3];
+    private final FrequencySketch sketch;
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+    // Guards the LRU lists, the sketch and the eviction counters
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions;
+    private long rejections;
+
+    public ValueCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        this.protectedMax = (maxBytes - this.windowMax) * PROTECTED_PERCENT / 100;
+        for (int i = 0; i < this.queues.length; i++) {
+            Entry sentinel = new Entry(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            this.queues[i] = sentinel;
+        }
+        for (int i = 0; i < READ_BUFFERS; i++) {
+            this.readBuffers[i] = new ReadBuffer();
+        }
+        // Sized for entries of about 256 bytes; the sketch only has to tell hot keys from cold ones
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / 256)));
+    }
+
+    private static int stripe(String key) {
+        return key.hashCode() & (STAMP_STRIPES - 1);
+    }
+
+    // Taken before reading RocksDB on a miss and passed back to fill
+    public long stamp(String key) {
+        return this.stamps.get(stripe(key));
+    }
+
+    public byte[] get(String key) {
+        Entry entry = this.entries.get(key);
+        if (entry == null) {
+            // Misses reach the sketch through the fill that follows them
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        ReadBuffer buffer = this.readBuffers[(int) (Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L >>> 32) & (READ_BUFFERS - 1)];
+        if (buffer.offer(entry) && this.policyLock.tryLock()) {
+            try {
+                this.drainReads();
+            } finally {
+                this.policyLock.unlock();
+            }
+        }
+        return entry.stored;
+    }
+
+    // Caches a value read from RocksDB, unless a write to the key's stripe was committed since the stamp
+    public void fill(String key, byte[] stored, long stamp) {
+        this.policyLock.lock();
+        try {
+            this.drainReads();
+            this.sketch.increment(key.hashCode());
+            if (stored == null || this.stamps.get(stripe(key)) != stamp || this.entries.containsKey(key)) {
+                return;
+            }
+            long weight = ENTRY_OVERHEAD + 2L * key.length() + stored.length;
+            if (weight > this.maxBytes - this.windowMax) {
+                return;
+            }
+            Entry entry = new Entry(key);
+            entry.stored = stored;
+            entry.weight = weight;
+            this.entries.put(key, entry);
+            this.append(WINDOW, entry);
+            this.evict();
+        } finally {
+            this.policyLock.unlock();
+        }
+    }
+
+    // Applies a committed write to the cached copy, if there is one; null means deleted
+    public void write(String key, byte[] stored) {
+        this.policyLock.lock();
+        try {
+            this.stamps.incrementAndGet(stripe(key));
+            Entry entry = this.entries.get(key);
+            if (entry == null) {
+                return;
+            }
+            if (stored == null) {
+                this.remove(entry);
+                return;
+            }
+            this.drainReads();
+            this.queueBytes[entry.queue] += stored.length - entry.stored.length;
+            entry.weight += stored.length - entry.stored.length;
+            entry.stored = stored;
+            this.evict();
+        } finally {
+            this.policyLock.unlock();
+        }
+    }
+
+    // Drops everything, for writes that bypass write, like range deletes
+    public void clear() {
+        this.policyLock.lock();
+        try {
+            for (int i = 0; i < STAMP_STRIPES; i++) {
+                this.stamps.incrementAndGet(i);
+            }
+            for (Entry entry : this.entries.values().toArray(new Entry[0])) {
+                this.remove(entry);
+            }
+        } finally {
+            this.policyLock.unlock();
+        }
+    }
+
+    // Replays the buffered reads into the sketch and the LRU lists; callers hold the policy lock.
+    // Entries removed since they were read only count toward the sketch.
+    private void drainReads() {
+        for (ReadBuffer buffer : this.readBuffers) {
+            buffer.drain(entry -> {
+                this.sketch.increment(entry.key.hashCode());
+                if (!entry.removed) {
+                    this.onAccess(entry);
+                }
+            });
+        }
+    }
+
+    private void onAccess(Entry entry) {
+        if (entry.queue == PROBATION) {
+            // Read again while on probation, so it moves to the protected segment, demoting the
+            // protected segment's least recently used entries if it overflows
+            this.unlink(entry);
+            this.append(PROTECTED, entry);
+            while (this.queueBytes[PROTECTED] > this.protectedMax) {
+                Entry demoted = this.queues[PROTECTED].next;
+                this.unlink(demoted);
+                this.append(PROBATION, demoted);
+            }
+        } else {
+            this.unlink(entry);
+            this.append(entry.queue, entry);
+        }
+    }
+
+    private void evict() {
+        // Entries pushed out of the window join the end of probation as candidates for the main space
+        Entry candidate = null;
+        while (this.queueBytes[WINDOW] > this.windowMax) {
+            Entry entry = this.queues[WINDOW].next;
+            this.unlink(entry);
+            this.append(PROBATION, entry);
+            if (candidate == null) {
+                candidate = entry;
+            }
+        }
+        while (this.weightedSize() > this.maxBytes) {
+            Entry victim = this.first(PROBATION);
+            if (victim == null) {
+                victim = this.first(PROTECTED) != null ? this.first(PROTECTED) : this.first(WINDOW);
+            }
+            if (candidate == null || candidate == victim || candidate.queue != PROBATION) {
+                this.remove(victim);
+                this.evictions++;
+                continue;
+            }
+            // TinyLFU admission: the candidate only stays if it is read more often than the victim
+            if (this.sketch.frequency(candidate.key.hashCode()) > this.sketch.frequency(victim.key.hashCode())) {
+                this.remove(victim);
+                this.evictions++;
+            } else {
+                Entry next = candidate.next == this.queues[PROBATION] ? null : candidate.next;
+                this.remove(candidate);
+                this.rejections++;
+                candidate = next;
+            }
+        }
+    }
+
+    private long weightedSize() {
+        return this.queueBytes[WINDOW] + this.queueBytes[PROBATION] + this.queueBytes[PROTECTED];
+    }
+
+    private Entry first(int queue) {
+        Entry first = this.queues[queue].next;
+        return first == this.queues[queue] ? null : first;
+    }
+
+    private void append(int queue, Entry entry) {
+        Entry sentinel = this.queues[queue];
+        entry.queue = queue;
+        entry.prev = sentinel.prev;
+        entry.next = sentinel;
+        sentinel.prev.next = entry;
+        sentinel.prev = entry;
+        this.queueBytes[queue] += entry.weight;
+    }
+
+    private void unlink(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        this.queueBytes[entry.queue] -= entry.weight;
+    }
+
+    private void remove(Entry entry) {
+        this.unlink(entry);
+        entry.removed = true;
+        this.entries.remove(entry.key);
+    }
+
+    // The segment holding the key, or -1 if it is not cached, once the buffered reads are replayed;
+    // for tests
+    int segment(String key) {
+        this.policyLock.lock();
+        try {
+            this.drainReads();
+            Entry entry = this.entries.get(key);
+            return entry == null ? -1 : entry.queue;
+        } finally {
+            this.policyLock.unlock();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long hits = this.hits.sum();
+        long misses = this.misses.sum();
+        this.policyLock.lock();
+        try {
+            return Map.of(
+                    "maxBytes", this.maxBytes,
+                    "bytes", this.weightedSize(),
+                    "entries", this.entries.size(),
+                    "hits", hits,
+                    "misses", misses,
+                    "hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses),
+                    "evictions", this.evictions,
+                    "rejections", this.rejections);
+        } finally {
+            this.policyLock.unlock();
+        }
+    }
+
+    /**
+     * Bounded ring of entries read by some set of threads. Readers claim a slot by advancing the write
+     * counter, and give up if the ring is full or another reader claimed the slot first. Only the
+     * holder of the policy lock drains it, stopping at a slot that was claimed but not yet filled.
+     */
+    private static class ReadBuffer {
+        private static final int MASK = READ_BUFFER_SIZE - 1;
+
+        private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        private volatile long reads;
+
+        // Records the read, or drops it; returns whether the ring is full and should be drained
+        boolean offer(Entry entry) {
+            long head = this.reads;
+            long tail = this.writes.get();
+            if (tail - head >= READ_BUFFER_SIZE) {
+                return true;
+            }
+            if (!this.writes.compareAndSet(tail, tail + 1)) {
+                return false;
+            }
+            this.slots.lazySet((int) (tail & MASK), entry);
+            return tail + 1 - head >= READ_BUFFER_SIZE;
+        }
+
+        void drain(Consumer<Entry> consumer) {
+            long head = this.reads;
+            long tail = this.writes.get();
+            for (; head < tail; head++) {
+                int slot = (int) (head & MASK);
+                Entry entry = this.slots.get(slot);
+                if (entry == null) {
+                    break;
+                }
+                this.slots.lazySet(slot, null);
+                consumer.accept(entry);
+            }
+            this.reads = head;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit access counters, four per key, halved every ten accesses per counter
+     * so that frequencies follow the recent workload.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0x27D4EB2F165667C5L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(width - 1) << 1;
+            this.counters = new byte[size * DEPTH];
+            this.mask = size - 1;
+            this.resetAfter = 10 * size;
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return row * (this.mask + 1) + ((int) (h >>> 32) & this.mask);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int i = this.index(hash, row);
+                if (this.counters[i] < 15) {
+                    this.counters[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.resetAfter) {
+                for (int i = 0; i < this.counters.length; i++) {
+                    this.counters[i] >>= 1;
+                }
+                this.additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, this.counters[this.index(hash, row)]);
+            }
+            return frequency;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.evergreen.keyval;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encoding of a value together with its version, {@code [long version][value]}. This is how values
+ * are stored in RocksDB and how they travel between nodes, in replica writes and reads, hints,
+ * handoff streams and anti-entropy repairs, so a copy keeps its version wherever it goes. Versions
+ * come from each coordinator's {@link HybridClock}, and of two copies of a key the one with the higher
+ * version wins; equal versions are ordered by digest so that every replica picks the same copy.
+ *
+ * A value written with a content type is encoded as {@code [long version | CONTENT_TYPE][short
+ * length][content type][value]}. Clock versions never set the sign bit, so values stored before
+ * content types were kept decode unchanged.
+ *
+ * A value written with a TTL sets EXPIRES, the next bit down, and carries the time it expires at,
+ * in epoch milliseconds, right after the version: {@code [long version | EXPIRES][long expires
+ * at][...]}. The expiry is absolute, so every replica and every later copy expires the value at the
+ * same moment however long it took to get there.
+ *
+ * A delete is stored as a tombstone, {@code [long version | TOMBSTONE | EXPIRES][long deleted at]},
+ * versioned like any write, so a delete and a write to the same key are ordered the same way on every
+ * replica whichever arrives first. Tombstones and expired values are dead copies: reads treat them as
+ * absent, but they are kept, and replicated, for keyval.tombstoneGraceMinutes after they died so that
+ * they still win over the older copies they replaced. After that they can be purged.
+ */
+public class Versioned {
+
+    private static final int VERSION_LENGTH = 8;
+    private static final int EXPIRES_LENGTH = 8;
+    private static final long CONTENT_TYPE = Long.MIN_VALUE;
+    private static final long EXPIRES = 1L << 62;
+    private static final long TOMBSTONE = 1L << 61;
+    private static final long FLAGS = CONTENT_TYPE | EXPIRES | TOMBSTONE;
+
+    public static byte[] encode(long version, byte[] value) {
+        return ByteBuffer.allocate(VERSION_LENGTH + value.length).putLong(version).put(value).array();
+    }
+
+    // Reads a value of the given length straight into its encoding, so a request body is copied once;
+    // a negative length, for a body of unknown size, reads to the end of the stream first. An
+    // expiresAt of 0 means the value never expires.
+    public static byte[] read(long version, String contentType, long expiresAt, InputStream in, int length) throws IOException {
+        if (length < 0) {
+            return encode(version, contentType, expiresAt, in.readAllBytes());
+        }
+        byte[] stored = header(version, contentType, expiresAt, length);
+        int offset = stored.length - length;
+        if (in.readNBytes(stored, offset, length) < length) {
+            throw new EOFException("Value ended before its length of " + length);
+        }
+        return stored;
+    }
+
+    public static byte[] encode(long version, String contentType, long expiresAt, byte[] value) {
+        byte[] stored = header(version, contentType, expiresAt, value.length);
+        System.arraycopy(value, 0, stored, stored.length - value.length, value.length);
+        return stored;
+    }
+
+    // The encoding with its version, expiry and content type filled in and room left at the end for
+    // the value
+    private static byte[] header(long version, String contentType, long expiresAt, int valueLength) {
+        byte[] type = contentType == null ? null : contentType.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(VERSION_LENGTH
+                + (expiresAt == 0 ? 0 : EXPIRES_LENGTH)
+                + (type == null ? 0 : 2 + type.length)
+                + valueLength);
+        buffer.putLong(version | (expiresAt == 0 ? 0 : EXPIRES) | (type == null ? 0 : CONTENT_TYPE));
+        if (expiresAt != 0) {
+            buffer.putLong(expiresAt);
+        }
+        if (type != null) {
+            buffer.putShort((short) type.length).put(type);
+        }
+        return buffer.array();
+    }
+
+    // A delete made at deletedAt, in epoch milliseconds
+    public static byte[] tombstone(long version, long deletedAt) {
+        return ByteBuffer.allocate(VERSION_LENGTH + EXPIRES_LENGTH)
+                .putLong(version | EXPIRES | TOMBSTONE)
+                .putLong(deletedAt)
+                .array();
+    }
+
+    public static boolean isTombstone(byte[] stored) {
+        return (stored[0] & 0x20) != 0;
+    }
+
+    public static long version(byte[] stored) {
+        return ByteBuffer.wrap(stored, 0, VERSION_LENGTH).getLong() & ~FLAGS;
+    }
+
+    // When the value expires, in epoch milliseconds, or 0 if it was written without a TTL; for a
+    // tombstone, when the delete was made
+    public static long expiresAt(byte[] stored) {
+        if ((stored[0] & 0x40) == 0) {
+            return 0;
+        }
+        return ByteBuffer.wrap(stored, VERSION_LENGTH, EXPIRES_LENGTH).getLong();
+    }
+
+    public static boolean expired(byte[] stored, long nowMillis) {
+        long expiresAt = expiresAt(stored);
+        return expiresAt != 0 && expiresAt <= nowMillis;
+    }
+
+    // Whether reads see the copy: it is there, not a tombstone, and not expired
+    public static boolean live(byte[] stored, long nowMillis) {
+        return stored != null && !isTombstone(stored) && !expired(stored, nowMillis);
+    }
+
+    // When a dead copy may be purged, grace milliseconds after it died, or 0 for a copy without a TTL
+    public static long purgeAt(byte[] stored, long graceMillis) {
+        long expiresAt = expiresAt(stored);
+        return expiresAt == 0 ? 0 : expiresAt + graceMillis;
+    }
+
+    // Where the content type's length is, after the version and the expiry if there is one
+    private static int contentTypeOffset(byte[] stored) {
+        return VERSION_LENGTH + ((stored[0] & 0x40) == 0 ? 0 : EXPIRES_LENGTH);
+    }
+
+    // The content type the value was written with, or null if it had none
+    public static String contentType(byte[] stored) {
+        if ((stored[0] & 0x80) == 0) {
+            return null;
+        }
+        int offset = contentTypeOffset(stored);
+        int length = ByteBuffer.wrap(stored, offset, 2).getShort() & 0xffff;
+        return new String(stored, offset + 2, length, StandardCharsets.UTF_8);
+    }
+
+    // Where the value starts in its encoding; it runs to the end, so readers can use it in place
+    public static int valueOffset(byte[] stored) {
+        int offset = contentTypeOffset(stored);
+        if ((stored[0] & 0x80) == 0) {
+            return offset;
+        }
+        return offset + 2 + (ByteBuffer.wrap(stored, offset, 2).getShort() & 0xffff);
+    }
+
+    public static byte[] value(byte[] stored) {
+        return Arrays.copyOfRange(stored, valueOffset(stored), stored.length);
+    }
+
+    // Identifies the copy of the key, version included; also its contribution to the Merkle tree
+    public static long digest(byte[] key, byte[] stored) {
+        return MerkleTree.entryHash(key, stored);
+    }
+
+    public static boolean newer(long version, long digest, long thanVersion, long thanDigest) {
+        return version != thanVersion ? version > thanVersion : digest > thanDigest;
+    }
+
+    // Whether the stored copy wins over the other one; a missing copy (null) never does
+    public static boolean newer(byte[] key, byte[] stored, byte[] than) {
+        if (stored == null) {
+            return false;
+        }
+        if (than == null) {
+            return true;
+        }
+        return newer(version(stored), digest(key, stored), version(than), digest(key, than));
+    }
+}
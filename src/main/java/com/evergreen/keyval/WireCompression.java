@@ -0,0 +1,173 @@
+package com.evergreen.keyval;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Zstandard compression of node-to-node traffic: RPC payloads, {@code /keys/stream} transfers and
+ * gossip. Every HTTP response carries {@link #HEADER} with what the node can decode, e.g. "zstd", or
+ * "zstd;dict=1135385451" with keyval.wireDictionary set, and a node only compresses for peers that
+ * advertised the same, so peers on older builds or other settings keep talking uncompressed.
+ * Payloads under keyval.wireCompressionMinBytes, and payloads that do not shrink, are sent raw.
+ *
+ * A dictionary trained on sample values, e.g. with {@code zstd --train}, lets small similar values
+ * compress too; every node must load the same one.
+ */
+public class WireCompression {
+
+    public static final String HEADER = "X-Keyval-Compression";
+    // Content-Encoding of compressed HTTP bodies and streams
+    public static final String ENCODING = "zstd";
+
+    private final Metrics metrics;
+    // What this node advertises, or null with keyval.wireCompression=none
+    private final String advertisement;
+    private final ZstdDictCompress dictCompress;
+    private final ZstdDictDecompress dictDecompress;
+
+    public WireCompression(Metrics metrics) {
+        this.metrics = metrics;
+        if (Config.WIRE_COMPRESSION == Config.WireCompression.NONE) {
+            this.advertisement = null;
+            this.dictCompress = null;
+            this.dictDecompress = null;
+            return;
+        }
+        byte[] dictionary = null;
+        if (Config.WIRE_DICTIONARY != null) {
+            try {
+                dictionary = Files.readAllBytes(Path.of(Config.WIRE_DICTIONARY));
+            } catch (IOException e) {
+                System.err.printf("Unable to read compression dictionary %s, compressing without it\n", Config.WIRE_DICTIONARY);
+                e.printStackTrace();
+            }
+        }
+        if (dictionary == null) {
+            this.advertisement = ENCODING;
+            this.dictCompress = null;
+            this.dictDecompress = null;
+        } else {
+            this.advertisement = String.format("%s;dict=%d", ENCODING, Zstd.getDictIdFromDict(dictionary));
+            this.dictCompress = new ZstdDictCompress(dictionary, Config.WIRE_COMPRESSION_LEVEL);
+            this.dictDecompress = new ZstdDictDecompress(dictionary);
+        }
+    }
+
+    public String advertisement() {
+        return this.advertisement;
+    }
+
+    // Whether payloads for a peer that advertised this may be compressed
+    public boolean accepts(String peerAdvertisement) {
+        return this.advertisement != null && this.advertisement.equals(peerAdvertisement);
+    }
+
+    // Whether a request's Accept-Encoding lets its response be compressed
+    public boolean acceptsEncoding(String acceptEncoding) {
+        return this.advertisement != null && acceptEncoding != null && acceptEncoding.contains(ENCODING);
+    }
+
+    // The payload compressed, or null if it should go raw: compression is off, the payload is below
+    // the threshold, or it did not shrink. Channel labels the metrics, e.g. "rpc".
+    public byte[] compress(byte[] payload, String channel) {
+        if (this.advertisement == null) {
+            return null;
+        }
+        if (payload.length < Config.WIRE_COMPRESSION_MIN_BYTES) {
+            this.recordUncompressed(channel, payload.length);
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] compressed = this.dictCompress == null
+                ? Zstd.compress(payload, Config.WIRE_COMPRESSION_LEVEL)
+                : Zstd.compress(payload, this.dictCompress);
+        this.metrics.timer("keyval_wire_compression_seconds", "CPU time spent compressing and decompressing peer traffic",
+                "operation", "compress").recordSince(start);
+        if (compressed.length >= payload.length) {
+            this.recordUncompressed(channel, payload.length);
+            return null;
+        }
+        this.recordCompressed(channel, payload.length, compressed.length);
+        return compressed;
+    }
+
+    public byte[] decompress(byte[] compressed) throws IOException {
+        long start = System.nanoTime();
+        long size = Zstd.getFrameContentSize(compressed);
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("Compressed payload has no valid content size");
+        }
+        long dictId = Zstd.getDictIdFromFrame(compressed);
+        if (dictId != 0 && this.dictDecompress == null) {
+            throw new IOException(String.format("Payload compressed with dictionary %d, which this node does not have", dictId));
+        }
+        try {
+            return dictId == 0
+                    ? Zstd.decompress(compressed, (int) size)
+                    : Zstd.decompress(compressed, this.dictDecompress, (int) size);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to decompress payload", e);
+        } finally {
+            this.metrics.timer("keyval_wire_compression_seconds", "CPU time spent compressing and decompressing peer traffic",
+                    "operation", "decompress").recordSince(start);
+        }
+    }
+
+    // Compresses a stream as it is written, recording its sizes when it is closed
+    public OutputStream compressStream(OutputStream out, String channel) throws IOException {
+        CountingOutputStream wire = new CountingOutputStream(out);
+        return new CountingOutputStream(new ZstdOutputStream(wire, Config.WIRE_COMPRESSION_LEVEL)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                WireCompression.this.recordCompressed(channel, this.count, wire.count);
+            }
+        };
+    }
+
+    public InputStream decompressStream(InputStream in) throws IOException {
+        return new ZstdInputStream(in);
+    }
+
+    private void recordUncompressed(String channel, long bytes) {
+        this.metrics.counter("keyval_wire_uncompressed_bytes_total", "Bytes sent to peers uncompressed, below the threshold or incompressible",
+                "channel", channel).add(bytes);
+    }
+
+    private void recordCompressed(String channel, long rawBytes, long compressedBytes) {
+        this.metrics.counter("keyval_wire_compression_input_bytes_total", "Bytes sent to peers compressed, before compression",
+                "channel", channel).add(rawBytes);
+        this.metrics.counter("keyval_wire_compression_output_bytes_total", "Bytes sent to peers compressed, after compression",
+                "channel", channel).add(compressedBytes);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            this.out.write(b, offset, length);
+            this.count += length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+    }
+}
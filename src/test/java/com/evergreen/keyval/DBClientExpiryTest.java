@@ -0,0 +1,144 @@
+package com.evergreen.keyval;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Values with a TTL. Surefire runs these in their own JVM with keyval.tombstoneGraceMinutes=0 and the
+ * scheduled sweep off, so a copy is purgeable the moment it expires and each test sweeps when it is
+ * ready. The sweep must purge only the copies its index entries still describe.
+ */
+class DBClientExpiryTest {
+
+    // Long enough for the writes before it to land, short enough to wait out
+    private static final long TTL_MS = 300;
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void waitUntil(long millis) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        if (millis >= now) {
+            Thread.sleep(millis - now + 1);
+        }
+    }
+
+    @Test
+    void expiredValuesReadAsMissing() throws InterruptedException {
+        DBClient db = open(5211);
+        long expiresAt = System.currentTimeMillis() + TTL_MS;
+        byte[] stored = Versioned.encode(db.nextVersion(), "text/plain", expiresAt, bytes("value"));
+        assertTrue(db.postVersioned("key", stored));
+        db.post("forever", bytes("value"));
+
+        assertArrayEquals(bytes("value"), db.get("key"));
+        assertArrayEquals(bytes("value"), db.multiGet(List.of("key")).get(0));
+        assertEquals(expiresAt, Versioned.expiresAt(db.getStored("key")));
+
+        waitUntil(expiresAt);
+        assertNull(db.get("key"));
+        assertNull(db.multiGet(List.of("key", "forever")).get(0));
+        assertArrayEquals(bytes("value"), db.multiGet(List.of("key", "forever")).get(1));
+        // The dead copy is kept until the sweep, so it still wins over older copies
+        assertArrayEquals(stored, db.getStored("key"));
+        assertTrue(db.postVersioned("key", Versioned.encode(Versioned.version(stored) - 1, bytes("older"))));
+        assertNull(db.get("key"));
+    }
+
+    @Test
+    void sweepPurgesOnlyCopiesTheIndexStillDescribes() throws InterruptedException {
+        Metrics metrics = new Metrics();
+        DBClient db = DBClientTest.open(5212, metrics);
+        long expiresAt = System.currentTimeMillis() + TTL_MS;
+        // A range delete leaves the index entry behind, so the sweep reaches it and must recheck
+        db.postVersioned("rewritten", Versioned.encode(db.nextVersion(), null, expiresAt, bytes("value")));
+        db.deleteAll();
+        db.postVersioned("rewritten", Versioned.encode(db.nextVersion(), bytes("kept")));
+
+        db.postVersioned("expires", Versioned.encode(db.nextVersion(), null, expiresAt, bytes("value")));
+        // Overwritten through the write path, which moves or removes the index entry
+        db.postVersioned("overwritten", Versioned.encode(db.nextVersion(), null, expiresAt, bytes("value")));
+        db.postVersioned("overwritten", Versioned.encode(db.nextVersion(), bytes("kept")));
+        db.postVersioned("extended", Versioned.encode(db.nextVersion(), null, expiresAt, bytes("value")));
+        db.postVersioned("extended", Versioned.encode(db.nextVersion(), null, expiresAt + 3_600_000, bytes("kept")));
+
+        waitUntil(expiresAt);
+        db.sweepExpired();
+        assertNull(db.getStored("expires"));
+        assertArrayEquals(bytes("kept"), db.get("overwritten"));
+        assertArrayEquals(bytes("kept"), db.get("extended"));
+        assertArrayEquals(bytes("kept"), db.get("rewritten"));
+        assertEquals(1, DBClientTest.sample(metrics, "keyval_ttl_expired_total"));
+
+        // The entries it reached are gone, so the next sweep purges nothing
+        db.sweepExpired();
+        assertEquals(1, DBClientTest.sample(metrics, "keyval_ttl_expired_total"));
+        assertArrayEquals(bytes("kept"), db.get("rewritten"));
+    }
+
+    @Test
+    void expiryTravelsWithStreamedAndSnapshotRanges() throws Exception {
+        DBClient source = open(5213);
+        long expiresAt = System.currentTimeMillis() + TTL_MS;
+        long laterAt = expiresAt + 3_600_000;
+        byte[] dies = Versioned.encode(source.nextVersion(), null, expiresAt, bytes("dies"));
+        byte[] lives = Versioned.encode(source.nextVersion(), "text/plain", laterAt, bytes("lives"));
+        source.postVersioned("dies", dies);
+        source.postVersioned("lives", lives);
+
+        // As /keys/stream sends a range and the receiver writes it through postBatch
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(streamed);
+        source.scanRange(Long.MIN_VALUE, Long.MAX_VALUE, null, (key, stored) -> HandoffStream.writeEntry(out, key, stored));
+        HandoffStream.writeEnd(out);
+        DBClient streamTarget = open(5214);
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(streamed.toByteArray()));
+        for (byte[][] entry = HandoffStream.readEntry(in); entry != null; entry = HandoffStream.readEntry(in)) {
+            keys.add(entry[0]);
+            values.add(entry[1]);
+        }
+        assertTrue(streamTarget.postBatch(keys, values));
+
+        // As /keys/snapshot exports a range and the receiver ingests the file
+        DBClient snapshotTarget = open(5215);
+        Path file = Files.createTempFile(snapshotTarget.directory(), "snapshot-", ".sst");
+        assertEquals(2, source.exportRange(Long.MIN_VALUE, Long.MAX_VALUE, file));
+        assertTrue(snapshotTarget.ingestRange(file, Long.MIN_VALUE, Long.MAX_VALUE));
+
+        for (DBClient target : List.of(streamTarget, snapshotTarget)) {
+            assertArrayEquals(dies, target.getStored("dies"));
+            assertArrayEquals(lives, target.getStored("lives"));
+            assertEquals("text/plain", Versioned.contentType(target.getStored("lives")));
+        }
+        waitUntil(expiresAt);
+        for (DBClient target : List.of(streamTarget, snapshotTarget)) {
+            assertNull(target.get("dies"));
+            // Each receiver indexed the copies it took over, so its own sweep purges them
+            target.sweepExpired();
+            assertNull(target.getStored("dies"));
+            assertArrayEquals(bytes("lives"), target.get("lives"));
+            assertEquals(laterAt, Versioned.expiresAt(target.getStored("lives")));
+        }
+    }
+
+    private static DBClient open(int port) {
+        return DBClientTest.open(port, new Metrics());
+    }
+}
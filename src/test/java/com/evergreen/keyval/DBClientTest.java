@@ -0,0 +1,152 @@
+package com.evergreen.keyval;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A node's local store. Surefire runs it with keyval.fsync=batch, so concurrent writes are queued and
+ * group-committed; a write must see the same outcome, and learn what it replaced, as if it had been
+ * committed alone in queue order.
+ */
+class DBClientTest {
+
+    private static final int WRITERS = 32;
+
+    // Each test opens its own store, as a node would on its own port, wiping what an earlier run left
+    static DBClient open(int port, Metrics metrics) {
+        Path directory = Path.of(Config.DATA_DIR, String.valueOf(port));
+        if (Files.exists(directory)) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new DBClient(port, metrics);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static long sample(Metrics metrics, String name) {
+        for (String line : metrics.scrape().split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return (long) Double.parseDouble(line.substring(name.length() + 1));
+            }
+        }
+        throw new AssertionError(name + " was not exported");
+    }
+
+    @Test
+    void groupCommitsConcurrentWriters() throws Exception {
+        assertSame(Config.Fsync.BATCH, Config.FSYNC);
+        Metrics metrics = new Metrics();
+        DBClient db = open(5201, metrics);
+        byte[] shared = bytes("shared");
+        long base = db.nextVersion();
+        byte[][] sharedValues = new byte[WRITERS][];
+        for (int i = 0; i < WRITERS; i++) {
+            sharedValues[i] = Versioned.encode(base + i, bytes("shared" + i));
+        }
+
+        CyclicBarrier start = new CyclicBarrier(WRITERS);
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        try {
+            List<Future<List<List<byte[]>>>> results = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                int writer = i;
+                results.add(writers.submit(() -> {
+                    byte[] own = bytes("own" + writer);
+                    start.await();
+                    // The shared key is written by every writer in the same rounds of commits
+                    return List.of(
+                            db.submit(List.of(shared, own), List.of(sharedValues[writer], Versioned.encode(base, own))),
+                            db.submit(List.of(own), List.of(Versioned.encode(base + 1, own))));
+                }));
+            }
+
+            int sawNothing = 0;
+            for (int i = 0; i < WRITERS; i++) {
+                List<List<byte[]>> replaced = results.get(i).get(10, TimeUnit.SECONDS);
+                assertNotNull(replaced.get(0), "write " + i + " failed");
+                assertNotNull(replaced.get(1), "write " + i + " failed");
+
+                byte[] sharedReplaced = replaced.get(0).get(0);
+                if (sharedReplaced == null) {
+                    sawNothing++;
+                } else {
+                    // Whatever a writer replaced is a copy another writer wrote, not a merge of two
+                    assertTrue(Versioned.version(sharedReplaced) >= base && Versioned.version(sharedReplaced) < base + WRITERS);
+                    assertArrayEquals(sharedValues[(int) (Versioned.version(sharedReplaced) - base)], sharedReplaced);
+                }
+                assertNull(replaced.get(0).get(1));
+                byte[] own = bytes("own" + i);
+                assertArrayEquals(Versioned.encode(base, own), replaced.get(1).get(0));
+                assertArrayEquals(Versioned.encode(base + 1, own), db.getStored("own" + i));
+            }
+            assertEquals(1, sawNothing, "exactly one writer found the shared key unwritten");
+            assertArrayEquals(sharedValues[WRITERS - 1], db.getStored("shared"));
+        } finally {
+            writers.shutdownNow();
+        }
+
+        long commits = sample(metrics, "keyval_group_commit_writes_count");
+        long writes = sample(metrics, "keyval_group_commit_writes_sum");
+        assertEquals(3L * WRITERS, writes);
+        assertTrue(commits < 2L * WRITERS, "no commit took more than one queued write");
+    }
+
+    @Test
+    void sameKeyTwiceInOneCommit() {
+        DBClient db = open(5202, new Metrics());
+        byte[] key = bytes("key");
+        long version = db.nextVersion();
+        byte[] first = Versioned.encode(version, bytes("first"));
+        byte[] second = Versioned.encode(version + 1, bytes("second"));
+        byte[] newest = Versioned.encode(version + 3, bytes("newest"));
+        byte[] stale = Versioned.encode(version + 2, bytes("stale"));
+
+        List<byte[]> replaced = db.submit(List.of(key, key), List.of(first, second));
+        assertNull(replaced.get(0));
+        assertArrayEquals(first, replaced.get(1));
+        assertArrayEquals(second, db.getStored("key"));
+
+        // The later write is older, so it is skipped and reports the copy that beat it
+        replaced = db.submit(List.of(key, key), List.of(newest, stale));
+        assertArrayEquals(second, replaced.get(0));
+        assertArrayEquals(newest, replaced.get(1));
+        assertArrayEquals(newest, db.getStored("key"));
+
+        // A tombstone and a put of the same key, the put older than the tombstone
+        byte[] tombstone = Versioned.tombstone(version + 5, System.currentTimeMillis());
+        replaced = db.submit(List.of(key, key), List.of(tombstone, Versioned.encode(version + 4, bytes("late"))));
+        assertArrayEquals(newest, replaced.get(0));
+        assertArrayEquals(tombstone, replaced.get(1));
+        assertArrayEquals(tombstone, db.getStored("key"));
+        assertNull(db.get("key"));
+    }
+}
@@ -0,0 +1,42 @@
+package com.evergreen.keyval;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tokens decide which nodes store every key, so they must stay equal to the first 64 bits of the
+ * reference MurmurHash3_x64_128 with seed 0. The inputs cover an empty key, tails of every branch of
+ * the tail switch, and whole 16-byte blocks.
+ */
+class Murmur3PartitionerTest {
+
+    private static long token(String key) {
+        return Murmur3Partitioner.INSTANCE.token(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    @Test
+    void matchesReferenceForStrings() {
+        assertEquals(0L, token(""));
+        assertEquals(-2129773440516405919L, token("foo"));
+        assertEquals(-3758069500696749310L, token("hello"));
+        assertEquals(-6708179634213395235L, token("café"));
+        assertEquals(-2068352364225029268L, token("The quick brown fox jumps over the lazy dog"));
+    }
+
+    @Test
+    void matchesReferenceForWholeBlocksAndLongTails() {
+        assertEquals(4920504430128807728L, Murmur3Partitioner.INSTANCE.token(sequence(16)));
+        assertEquals(377690909827715220L, Murmur3Partitioner.INSTANCE.token(sequence(31)));
+    }
+}
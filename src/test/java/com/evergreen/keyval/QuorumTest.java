@@ -0,0 +1,48 @@
+package com.evergreen.keyval;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * A quorum must never complete with fewer successes than it was asked for, even when there are
+ * fewer replicas than that.
+ */
+class QuorumTest {
+
+    @Test
+    void completesOnceEnoughSucceed() {
+        Quorum<String> quorum = new Quorum<>(2, 3);
+        quorum.success("a");
+        assertFalse(quorum.future().isDone());
+        quorum.failure();
+        quorum.success("b");
+        assertEquals(List.of("a", "b"), quorum.future().join());
+    }
+
+    @Test
+    void failsOnceTooManyFail() {
+        Quorum<String> quorum = new Quorum<>(2, 3);
+        quorum.success("a");
+        quorum.failure();
+        quorum.failure();
+        assertNull(quorum.future().join());
+    }
+
+    @Test
+    void failsRatherThanShrinkingToFewerReplicas() {
+        Quorum<String> quorum = new Quorum<>(3, 2);
+        assertNull(quorum.future().join());
+        assertEquals(3, quorum.required());
+    }
+
+    @Test
+    void rejectsQuorumsBelowOne() {
+        assertThrows(IllegalArgumentException.class, () -> new Quorum<String>(0, 3));
+    }
+}
@@ -0,0 +1,66 @@
+package com.evergreen.keyval;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A connect to a peer that does not answer may take the whole connect timeout. Surefire runs the
+ * tests with a single virtual-thread carrier, so a connect that pinned its carrier, for example under
+ * a synchronized monitor, would hold up every other virtual thread until it timed out.
+ */
+class RpcClientTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    @Test
+    void stalledConnectHoldsUpNoOtherCall() throws Exception {
+        List<Socket> fillers = new ArrayList<>();
+        try (ServerSocket stalled = new ServerSocket(0, 1, LOOPBACK);
+             ServerSocket live = new ServerSocket(0, 50, LOOPBACK)) {
+            // The stalled peer never accepts, so once its backlog is full new connects hang until they time out
+            for (int i = 0; i < 2; i++) {
+                Socket filler = new Socket();
+                filler.connect(new InetSocketAddress(LOOPBACK, stalled.getLocalPort()), 1000);
+                fillers.add(filler);
+            }
+            RpcClient client = new RpcClient(1, 5000, new WireCompression(new Metrics()));
+            CompletableFuture<Void> stalledCall = new CompletableFuture<>();
+            Thread.ofVirtual().start(() -> {
+                client.call(address(stalled), Rpc.GET, new byte[0], false);
+                stalledCall.complete(null);
+            });
+            Thread.sleep(100);
+            assertFalse(stalledCall.isDone());
+
+            CompletableFuture<Void> liveCall = new CompletableFuture<>();
+            Thread.ofVirtual().start(() -> {
+                client.call(address(live), Rpc.GET, new byte[0], false);
+                liveCall.complete(null);
+            });
+            liveCall.get(500, TimeUnit.MILLISECONDS);
+            assertFalse(stalledCall.isDone());
+
+            stalledCall.get(5, TimeUnit.SECONDS);
+            assertTrue(stalledCall.isDone());
+        } finally {
+            for (Socket filler : fillers) {
+                filler.close();
+            }
+        }
+    }
+
+    private static String address(ServerSocket server) {
+        return String.format("%s:%d", LOOPBACK.getHostAddress(), server.getLocalPort());
+    }
+}
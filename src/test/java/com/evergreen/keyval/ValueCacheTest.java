@@ -0,0 +1,142 @@
+package com.evergreen.keyval;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The stamp check is what keeps a read that raced a write from caching the overwritten value; the
+ * rest covers the weights and segments eviction relies on.
+ */
+class ValueCacheTest {
+
+    // Matches ValueCache's per-entry overhead
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static byte[] value(int length, int fill) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) fill);
+        return value;
+    }
+
+    private static long weight(String key, byte[] value) {
+        return ENTRY_OVERHEAD + 2L * key.length() + value.length;
+    }
+
+    private static long bytes(ValueCache cache) {
+        return ((Number) cache.stats().get("bytes")).longValue();
+    }
+
+    private static int entries(ValueCache cache) {
+        return ((Number) cache.stats().get("entries")).intValue();
+    }
+
+    @Test
+    void fillsWithACurrentStamp() {
+        ValueCache cache = new ValueCache(1 << 20);
+        byte[] stored = value(10, 1);
+        cache.fill("k", stored, cache.stamp("k"));
+        assertArrayEquals(stored, cache.get("k"));
+    }
+
+    @Test
+    void rejectsAFillWhoseStampAWriteMadeStale() {
+        ValueCache cache = new ValueCache(1 << 20);
+        // A reader misses and takes its stamp, then a write commits before the reader fills
+        long stamp = cache.stamp("k");
+        cache.write("k", value(10, 2));
+        cache.fill("k", value(10, 1), stamp);
+        assertNull(cache.get("k"));
+        assertEquals(0, entries(cache));
+
+        // A later miss takes a fresh stamp and fills normally
+        byte[] current = value(10, 2);
+        cache.fill("k", current, cache.stamp("k"));
+        assertArrayEquals(current, cache.get("k"));
+    }
+
+    @Test
+    void clearMakesEveryStampStale() {
+        ValueCache cache = new ValueCache(1 << 20);
+        long stamp = cache.stamp("k");
+        cache.clear();
+        cache.fill("k", value(10, 1), stamp);
+        assertNull(cache.get("k"));
+    }
+
+    @Test
+    void writeOfNullEvicts() {
+        ValueCache cache = new ValueCache(1 << 20);
+        cache.fill("k", value(10, 1), cache.stamp("k"));
+        cache.write("k", null);
+        assertNull(cache.get("k"));
+        assertEquals(0, entries(cache));
+        assertEquals(0, bytes(cache));
+        assertEquals(-1, cache.segment("k"));
+    }
+
+    @Test
+    void writeInPlaceReweighsTheEntry() {
+        ValueCache cache = new ValueCache(1 << 20);
+        byte[] small = value(10, 1);
+        byte[] large = value(500, 2);
+        cache.fill("a", small, cache.stamp("a"));
+        cache.fill("b", small, cache.stamp("b"));
+        assertEquals(2 * weight("a", small), bytes(cache));
+
+        cache.write("a", large);
+        assertArrayEquals(large, cache.get("a"));
+        assertEquals(weight("a", large) + weight("b", small), bytes(cache));
+
+        cache.write("a", small);
+        assertEquals(2 * weight("a", small), bytes(cache));
+        // Removing both must bring the weight back to exactly zero
+        cache.write("a", null);
+        cache.write("b", null);
+        assertEquals(0, bytes(cache));
+    }
+
+    @Test
+    void promotesFromWindowThroughProbationToProtected() {
+        // A 1000-byte window holds two of these entries of about 400 bytes
+        ValueCache cache = new ValueCache(100_000);
+        byte[] stored = value(300, 1);
+        cache.fill("a", stored, cache.stamp("a"));
+        assertEquals(ValueCache.WINDOW, cache.segment("a"));
+
+        cache.fill("b", stored, cache.stamp("b"));
+        cache.fill("c", stored, cache.stamp("c"));
+        assertEquals(ValueCache.PROBATION, cache.segment("a"));
+        assertEquals(ValueCache.WINDOW, cache.segment("c"));
+
+        assertArrayEquals(stored, cache.get("a"));
+        assertEquals(ValueCache.PROTECTED, cache.segment("a"));
+        // Reads of protected entries keep them there
+        cache.get("a");
+        assertEquals(ValueCache.PROTECTED, cache.segment("a"));
+    }
+
+    @Test
+    void protectedEntriesOutliveAScan() {
+        ValueCache cache = new ValueCache(20_000);
+        byte[] stored = value(300, 1);
+        cache.fill("hot", stored, cache.stamp("hot"));
+        for (int i = 0; i < 3; i++) {
+            cache.fill("warm" + i, stored, cache.stamp("warm" + i));
+        }
+        cache.get("hot");
+        assertEquals(ValueCache.PROTECTED, cache.segment("hot"));
+
+        // A one-off scan several times the cache's size
+        for (int i = 0; i < 500; i++) {
+            cache.fill("scan" + i, stored, cache.stamp("scan" + i));
+        }
+        assertArrayEquals(stored, cache.get("hot"));
+        assertTrue(bytes(cache) <= 20_000);
+    }
+}
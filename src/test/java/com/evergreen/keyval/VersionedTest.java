@@ -0,0 +1,146 @@
+package com.evergreen.keyval;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The encoding is what RocksDB stores and what nodes send each other, so copies written by earlier
+ * releases, including those from before any flag existed, must keep decoding the same way.
+ */
+class VersionedTest {
+
+    private static final byte[] KEY = bytes("key");
+    private static final byte[] VALUE = bytes("value");
+    // A version as the clock issues them today, with the logical counter at its highest
+    private static final long VERSION = HybridClock.at(1_790_000_000_000L) | 0xffff;
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void roundTripsEveryFlagCombination() throws IOException {
+        for (String contentType : new String[] {null, "application/json; charset=utf-8"}) {
+            for (long expiresAt : new long[] {0, 1_790_000_060_000L}) {
+                byte[] encoded = Versioned.encode(VERSION, contentType, expiresAt, VALUE);
+                byte[] read = Versioned.read(VERSION, contentType, expiresAt, new ByteArrayInputStream(VALUE), VALUE.length);
+                byte[] readToEnd = Versioned.read(VERSION, contentType, expiresAt, new ByteArrayInputStream(VALUE), -1);
+                assertArrayEquals(encoded, read);
+                assertArrayEquals(encoded, readToEnd);
+
+                assertEquals(VERSION, Versioned.version(encoded));
+                assertEquals(contentType, Versioned.contentType(encoded));
+                assertEquals(expiresAt, Versioned.expiresAt(encoded));
+                assertFalse(Versioned.isTombstone(encoded));
+                assertArrayEquals(VALUE, Versioned.value(encoded));
+                assertEquals(encoded.length - VALUE.length, Versioned.valueOffset(encoded));
+            }
+        }
+    }
+
+    @Test
+    void keepsTheStoredLayout() {
+        byte[] type = bytes("text/plain");
+        byte[] expected = ByteBuffer.allocate(8 + 8 + 2 + type.length + VALUE.length)
+                .putLong(VERSION | Long.MIN_VALUE | 1L << 62)
+                .putLong(1_790_000_060_000L)
+                .putShort((short) type.length)
+                .put(type)
+                .put(VALUE)
+                .array();
+        assertArrayEquals(expected, Versioned.encode(VERSION, "text/plain", 1_790_000_060_000L, VALUE));
+        assertArrayEquals(ByteBuffer.allocate(16).putLong(VERSION | 1L << 62 | 1L << 61).putLong(42).array(),
+                Versioned.tombstone(VERSION, 42));
+    }
+
+    @Test
+    void decodesValuesWithoutFlags() {
+        // Written before content types and TTLs, or migrated from an unversioned layout with version 0
+        for (long version : new long[] {0, VERSION}) {
+            byte[] legacy = ByteBuffer.allocate(8 + VALUE.length).putLong(version).put(VALUE).array();
+            assertArrayEquals(legacy, Versioned.encode(version, VALUE));
+            assertEquals(version, Versioned.version(legacy));
+            assertNull(Versioned.contentType(legacy));
+            assertEquals(0, Versioned.expiresAt(legacy));
+            assertFalse(Versioned.isTombstone(legacy));
+            assertArrayEquals(VALUE, Versioned.value(legacy));
+            assertTrue(Versioned.live(legacy, Long.MAX_VALUE));
+            assertEquals(0, Versioned.purgeAt(legacy, 60_000));
+        }
+        assertArrayEquals(new byte[0], Versioned.value(Versioned.encode(VERSION, new byte[0])));
+    }
+
+    @Test
+    void versionMasksTheFlags() {
+        assertTrue(VERSION < 1L << 61, "clock versions must stay clear of the flag bits");
+        assertEquals(VERSION, Versioned.version(Versioned.tombstone(VERSION, 1)));
+        assertEquals(VERSION, Versioned.version(Versioned.encode(VERSION, "text/plain", 1, VALUE)));
+        assertEquals(0, Versioned.version(Versioned.tombstone(0, 1)));
+    }
+
+    @Test
+    void tombstonesAreDeadFromTheDeleteOn() {
+        byte[] tombstone = Versioned.tombstone(VERSION, 1_000);
+        assertTrue(Versioned.isTombstone(tombstone));
+        assertEquals(1_000, Versioned.expiresAt(tombstone));
+        assertNull(Versioned.contentType(tombstone));
+        assertArrayEquals(new byte[0], Versioned.value(tombstone));
+        assertFalse(Versioned.live(tombstone, 0));
+        assertEquals(61_000, Versioned.purgeAt(tombstone, 60_000));
+    }
+
+    @Test
+    void valuesDieWhenTheyExpire() {
+        byte[] expiring = Versioned.encode(VERSION, null, 1_000, VALUE);
+        assertTrue(Versioned.live(expiring, 999));
+        assertFalse(Versioned.live(expiring, 1_000));
+        assertTrue(Versioned.expired(expiring, 1_000));
+        assertEquals(61_000, Versioned.purgeAt(expiring, 60_000));
+        assertFalse(Versioned.live(null, 0));
+    }
+
+    @Test
+    void higherVersionWinsWhateverTheDigest() {
+        byte[] older = Versioned.encode(VERSION, VALUE);
+        byte[] newer = Versioned.tombstone(VERSION + 1, 1);
+        assertTrue(Versioned.newer(KEY, newer, older));
+        assertFalse(Versioned.newer(KEY, older, newer));
+        assertTrue(Versioned.newer(KEY, older, null));
+        assertFalse(Versioned.newer(KEY, null, older));
+        assertFalse(Versioned.newer(KEY, null, null));
+    }
+
+    @Test
+    void equalVersionsAreOrderedByDigest() {
+        byte[] a = Versioned.encode(VERSION, bytes("a"));
+        byte[] b = Versioned.encode(VERSION, bytes("b"));
+        long digestA = Versioned.digest(KEY, a);
+        long digestB = Versioned.digest(KEY, b);
+        assertNotEquals(digestA, digestB);
+        // Exactly one copy wins, the one with the higher digest, on every replica
+        assertEquals(digestA > digestB, Versioned.newer(KEY, a, b));
+        assertEquals(digestB > digestA, Versioned.newer(KEY, b, a));
+        assertEquals(digestA > digestB, Versioned.newer(VERSION, digestA, VERSION, digestB));
+        // An identical copy is not newer, so writing it again changes nothing
+        assertFalse(Versioned.newer(KEY, a, a.clone()));
+    }
+
+    @Test
+    void rejectsShortBodies() {
+        assertThrows(EOFException.class,
+                () -> Versioned.read(VERSION, null, 0, new ByteArrayInputStream(VALUE), VALUE.length + 1));
+    }
+}